@@ -19,6 +19,7 @@ import com.dueeeke.dkplayer.activity.extend.ExtendActivity;
 import com.dueeeke.dkplayer.activity.list.ListActivity;
 import com.dueeeke.dkplayer.activity.pip.PIPDemoActivity;
 import com.dueeeke.dkplayer.util.PIPManager;
+import com.dueeeke.videoplayer.cache.CacheTask;
 import com.dueeeke.videoplayer.player.VideoCacheManager;
 import com.yanzhenjie.permission.AndPermission;
 
@@ -66,9 +67,19 @@ public class MainActivity extends AppCompatActivity {
                 PIPManager.getInstance().reset();
                 break;
             case R.id.clear_cache:
-                if (VideoCacheManager.clearAllCache(this)) {
-                    Toast.makeText(this, "清除缓存成功", Toast.LENGTH_SHORT).show();
-                }
+                VideoCacheManager.clearAllCacheAsync(this, new CacheTask.Listener() {
+                    @Override
+                    public void onProgress(int done, int total) {
+
+                    }
+
+                    @Override
+                    public void onComplete(boolean success) {
+                        if (success) {
+                            Toast.makeText(getApplicationContext(), "清除缓存成功", Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
                 break;
         }
         return super.onOptionsItemSelected(item);
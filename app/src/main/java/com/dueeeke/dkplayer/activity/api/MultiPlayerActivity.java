@@ -31,13 +31,13 @@ public class MultiPlayerActivity extends AppCompatActivity{
         mPlayer1 = findViewById(R.id.player_1);
         mPlayer1.setUrl(VOD_URL);
 
-        mPlayer1.setPlayerConfig(new PlayerConfig.Builder().disableAudioFocus().build());
+        mPlayer1.setPlayerConfig(new PlayerConfig.Builder().enableCache().disableAudioFocus().build());
         StandardVideoController controller1 = new StandardVideoController(this);
         mPlayer1.setVideoController(controller1);
 
         mPlayer2 = findViewById(R.id.player_2);
         mPlayer2.setUrl(VOD_URL);
-        mPlayer2.setPlayerConfig(new PlayerConfig.Builder().disableAudioFocus().build());
+        mPlayer2.setPlayerConfig(new PlayerConfig.Builder().enableCache().disableAudioFocus().build());
         StandardVideoController controller2 = new StandardVideoController(this);
         mPlayer2.setVideoController(controller2);
     }
@@ -13,6 +13,7 @@ import com.dueeeke.dkplayer.interf.ControllerListener;
 import com.dueeeke.dkplayer.widget.controller.AdController;
 import com.dueeeke.dkplayer.widget.videoview.ListIjkVideoView;
 import com.dueeeke.videocontroller.StandardVideoController;
+import com.dueeeke.videoplayer.cache.admission.CacheRequest;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -51,7 +52,8 @@ public class ADActivity extends AppCompatActivity {
                 Toast.makeText(ADActivity.this, "广告点击跳转", Toast.LENGTH_SHORT).show();
             }
         });
-        videos.add(new VideoModel(URL_AD, "广告", adController, true));
+        //广告缓存很快过期，不会挤掉正片的缓存
+        videos.add(new VideoModel(URL_AD, "广告", adController, true, CacheRequest.TAG_AD));
         videos.add(new VideoModel(URL_VOD, "这是一个标题", new StandardVideoController(this), false));
 
         ijkVideoView.setVideos(videos);
@@ -47,7 +47,7 @@ public class SwitchPlayerActivity extends AppCompatActivity implements View.OnCl
         ijkVideoView.setPlayerConfig(new PlayerConfig.Builder()
                 .autoRotate()//自动旋转屏幕
 //                .usingSurfaceView()//使用SurfaceView
-//                .enableCache()
+                .enableCache()//切换内核后共用同一份缓存
                 .build());
         ijkVideoView.setUrl(URL);
         ijkVideoView.setVideoController(mController);
@@ -79,6 +79,7 @@ public class SwitchPlayerActivity extends AppCompatActivity implements View.OnCl
                 .autoRotate()//自动旋转屏幕
 //                .usingSurfaceView()//使用SurfaceView
                 .setCustomMediaPlayer(player)
+                .enableCache()
 //                .setLooping()
                 .build());
         ijkVideoView.start();
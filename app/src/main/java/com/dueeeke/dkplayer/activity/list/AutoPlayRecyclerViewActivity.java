@@ -12,10 +12,14 @@ import android.view.View;
 
 import com.dueeeke.dkplayer.R;
 import com.dueeeke.dkplayer.adapter.VideoRecyclerViewAdapter;
+import com.dueeeke.dkplayer.bean.VideoBean;
 import com.dueeeke.dkplayer.util.DataUtil;
 import com.dueeeke.videoplayer.player.IjkVideoView;
+import com.dueeeke.videoplayer.player.VideoCacheManager;
 import com.dueeeke.videoplayer.player.VideoViewManager;
 
+import java.util.List;
+
 import static android.support.v7.widget.RecyclerView.SCROLL_STATE_IDLE;
 
 /**
@@ -25,6 +29,8 @@ import static android.support.v7.widget.RecyclerView.SCROLL_STATE_IDLE;
 
 public class AutoPlayRecyclerViewActivity extends AppCompatActivity {
 
+    private List<VideoBean> mVideos;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -49,7 +55,8 @@ public class AutoPlayRecyclerViewActivity extends AppCompatActivity {
         RecyclerView recyclerView = findViewById(R.id.rv);
         final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
         recyclerView.setLayoutManager(layoutManager);
-        recyclerView.setAdapter(new VideoRecyclerViewAdapter(DataUtil.getVideoList(), this));
+        mVideos = DataUtil.getVideoList();
+        recyclerView.setAdapter(new VideoRecyclerViewAdapter(mVideos, this));
         recyclerView.addOnChildAttachStateChangeListener(new RecyclerView.OnChildAttachStateChangeListener() {
             @Override
             public void onChildViewAttachedToWindow(View view) {
@@ -102,6 +109,7 @@ public class AutoPlayRecyclerViewActivity extends AppCompatActivity {
                         int videoHeight = ijkVideoView.getHeight();
                         if (rect.top == 0 && rect.bottom == videoHeight) {
                             ijkVideoView.start();
+                            preloadNext(view.getChildAdapterPosition(view.getChildAt(i)));
                             return;
                         }
                     }
@@ -114,14 +122,24 @@ public class AutoPlayRecyclerViewActivity extends AppCompatActivity {
             View view = recyclerView.getChildAt(0);
             IjkVideoView ijkVideoView = view.findViewById(R.id.video_player);
             ijkVideoView.start();
+            preloadNext(0);
         });
 
     }
 
+    /**
+     * 预加载下一条视频
+     */
+    private void preloadNext(int position) {
+        if (position < 0 || position + 1 >= mVideos.size()) return;
+        VideoCacheManager.preload(this, mVideos.get(position + 1).getUrl());
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
         VideoViewManager.instance().releaseVideoPlayer();
+        VideoCacheManager.cancelAllPreload();
     }
 
     @Override
@@ -22,6 +22,7 @@ import com.dueeeke.dkplayer.util.DataUtil;
 import com.dueeeke.dkplayer.widget.controller.TikTokController;
 import com.dueeeke.videoplayer.player.IjkVideoView;
 import com.dueeeke.videoplayer.player.PlayerConfig;
+import com.dueeeke.videoplayer.player.VideoCacheManager;
 
 import java.util.List;
 
@@ -53,7 +54,7 @@ public class TikTokActivity extends AppCompatActivity {
         setStatusBarTransparent();
 
         mIjkVideoView = new IjkVideoView(this);
-        PlayerConfig config = new PlayerConfig.Builder().setLooping().build();
+        PlayerConfig config = new PlayerConfig.Builder().enableCache().setLooping().build();
         mIjkVideoView.setPlayerConfig(config);
         mTikTokController = new TikTokController(this);
         mIjkVideoView.setVideoController(mTikTokController);
@@ -103,6 +104,10 @@ public class TikTokActivity extends AppCompatActivity {
         mIjkVideoView.setUrl(mVideoList.get(position).getUrl());
         mIjkVideoView.setScreenScale(IjkVideoView.SCREEN_SCALE_CENTER_CROP);
         mIjkVideoView.start();
+        //预加载下一条
+        if (position + 1 < mVideoList.size()) {
+            VideoCacheManager.preload(this, mVideoList.get(position + 1).getUrl());
+        }
     }
 
     /**
@@ -140,5 +145,6 @@ public class TikTokActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         mIjkVideoView.release();
+        VideoCacheManager.cancelAllPreload();
     }
 }
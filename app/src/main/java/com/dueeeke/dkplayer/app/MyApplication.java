@@ -3,7 +3,9 @@ package com.dueeeke.dkplayer.app;
 import android.app.Application;
 
 import com.dueeeke.dkplayer.BuildConfig;
+import com.dueeeke.videoplayer.player.VideoCacheManager;
 import com.dueeeke.videoplayer.util.L;
+import com.dueeeke.videoplayer.util.ProgressUtil;
 import com.squareup.leakcanary.LeakCanary;
 
 /**
@@ -27,6 +29,13 @@ public class MyApplication extends Application{
         L.setDebug(BuildConfig.DEBUG);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        VideoCacheManager.onTrimMemory(level);
+        ProgressUtil.onTrimMemory(level);
+    }
+
     public static MyApplication getInstance() {
         return instance;
     }
@@ -1,5 +1,6 @@
 package com.dueeeke.dkplayer.bean;
 
+import com.dueeeke.videoplayer.cache.admission.CacheRequest;
 import com.dueeeke.videoplayer.controller.BaseVideoController;
 
 /**
@@ -12,12 +13,19 @@ public class VideoModel {
     public String title;
 
     public VideoModel(String url, String title, BaseVideoController controller, boolean isCache) {
+        this(url, title, controller, isCache, CacheRequest.TAG_CONTENT);
+    }
+
+    public VideoModel(String url, String title, BaseVideoController controller, boolean isCache, int cacheTag) {
         this.url = url;
         this.title = title;
         this.controller = controller;
         this.isCache = isCache;
+        this.cacheTag = cacheTag;
     }
 
     public BaseVideoController controller;
     public boolean isCache;
+    public int cacheTag;//缓存来源标记，见CacheRequest
+    public long duration;//声明的时长，单位毫秒
 }
@@ -0,0 +1,125 @@
+package com.dueeeke.dkplayer.player;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.dueeeke.videoplayer.cache.CacheDataSource;
+import com.dueeeke.videoplayer.player.VideoCacheManager;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * ExoPlayer的缓存数据源，和IjkPlayer共用dkplayer的缓存文件、索引和清理策略。
+ * http地址从缓存读取，其他地址(本地文件、本地代理等)交给upstream
+ */
+public class ExoCacheDataSource implements DataSource {
+
+    private final Context mAppContext;
+    private final Map<String, String> mHeaders;
+    private final DataSource mUpstream;
+    private CacheDataSource mCacheDataSource;
+    private DataSource mCurrentDataSource;
+    private Uri mUri;
+    private long mPosition;
+    private long mBytesRemaining;
+
+    public ExoCacheDataSource(Context context, Map<String, String> headers, DataSource upstream) {
+        mAppContext = context.getApplicationContext();
+        mHeaders = headers;
+        mUpstream = upstream;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mUri = dataSpec.uri;
+        if (!isCacheable(dataSpec.uri)) {
+            mCurrentDataSource = mUpstream;
+            return mUpstream.open(dataSpec);
+        }
+        mCacheDataSource = VideoCacheManager.newDataSource(mAppContext, dataSpec.uri.toString(), mHeaders);
+        long size = mCacheDataSource.getSize();
+        mPosition = dataSpec.position;
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            mBytesRemaining = dataSpec.length;
+        } else {
+            mBytesRemaining = size < 0 ? C.LENGTH_UNSET : size - mPosition;
+        }
+        return mBytesRemaining;
+    }
+
+    private static boolean isCacheable(Uri uri) {
+        String scheme = uri.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) return false;
+        //本地代理的地址已经有缓存
+        String host = uri.getHost();
+        return !"127.0.0.1".equals(host) && !"localhost".equals(host);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (mCurrentDataSource != null) return mCurrentDataSource.read(buffer, offset, readLength);
+        if (readLength == 0) return 0;
+        if (mBytesRemaining == 0) return C.RESULT_END_OF_INPUT;
+        int length = mBytesRemaining == C.LENGTH_UNSET ? readLength : (int) Math.min(readLength, mBytesRemaining);
+        int read = mCacheDataSource.readAt(mPosition, buffer, offset, length);
+        if (read < 0) {
+            if (mBytesRemaining != C.LENGTH_UNSET) throw new IOException("Unexpected end of " + mUri);
+            return C.RESULT_END_OF_INPUT;
+        }
+        mPosition += read;
+        if (mBytesRemaining != C.LENGTH_UNSET) mBytesRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public Uri getUri() {
+        return mUri;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mUri = null;
+        if (mCurrentDataSource != null) {
+            try {
+                mCurrentDataSource.close();
+            } finally {
+                mCurrentDataSource = null;
+            }
+        }
+        if (mCacheDataSource != null) {
+            try {
+                mCacheDataSource.close();
+            } finally {
+                mCacheDataSource = null;
+            }
+        }
+    }
+
+    /**
+     * 缓存数据源工厂
+     */
+    public static class Factory implements DataSource.Factory {
+
+        private final Context mContext;
+        private final Map<String, String> mHeaders;
+        private final DataSource.Factory mUpstreamFactory;
+
+        /**
+         * @param upstreamFactory 用于不缓存的地址
+         */
+        public Factory(Context context, Map<String, String> headers, DataSource.Factory upstreamFactory) {
+            mContext = context;
+            mHeaders = headers;
+            mUpstreamFactory = upstreamFactory;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new ExoCacheDataSource(mContext, mHeaders, mUpstreamFactory.createDataSource());
+        }
+    }
+}
@@ -49,12 +49,12 @@ public class ExoMediaPlayer extends AbstractPlayer implements VideoListener {
     private boolean mIsBuffering = false;
     private DataSource.Factory mediaDataSourceFactory;
     private Map<String, String> mHeaders;
+    private boolean mCacheEnabled;
     private static final DefaultBandwidthMeter BANDWIDTH_METER = new DefaultBandwidthMeter();
 
     public ExoMediaPlayer(Context context) {
         mAppContext = context.getApplicationContext();
         lastReportedPlaybackState = Player.STATE_IDLE;
-        mediaDataSourceFactory = getDataSourceFactory(true);
     }
 
     @Override
@@ -70,8 +70,13 @@ public class ExoMediaPlayer extends AbstractPlayer implements VideoListener {
     @Override
     public void setDataSource(String path, Map<String, String> headers) {
         mDataSource = path;
-        mMediaSource = getMediaSource();
         mHeaders = headers;
+        mediaDataSourceFactory = getDataSourceFactory(true);
+        if (mCacheEnabled) {
+            //和IjkPlayer共用缓存
+            mediaDataSourceFactory = new ExoCacheDataSource.Factory(mAppContext, headers, mediaDataSourceFactory);
+        }
+        mMediaSource = getMediaSource();
     }
 
     @Override
@@ -289,6 +294,16 @@ public class ExoMediaPlayer extends AbstractPlayer implements VideoListener {
         return 0;
     }
 
+    @Override
+    public boolean isCacheSupported() {
+        return true;
+    }
+
+    @Override
+    public void setCacheEnabled(boolean enabled) {
+        mCacheEnabled = enabled;
+    }
+
     private Player.DefaultEventListener mDefaultEventListener = new Player.DefaultEventListener() {
         @Override
         public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
@@ -6,6 +6,7 @@ import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 
 import com.dueeeke.dkplayer.interf.ListMediaPlayerControl;
+import com.dueeeke.videoplayer.cache.admission.CacheRequest;
 import com.dueeeke.videoplayer.player.IjkVideoView;
 import com.dueeeke.dkplayer.bean.VideoModel;
 
@@ -48,6 +49,10 @@ public class ListIjkVideoView extends IjkVideoView implements ListMediaPlayerCon
             mCurrentUrl = videoModel.url;
             mCurrentTitle = videoModel.title;
             mPlayerConfig.isCache = videoModel.isCache;
+            setCacheRequest(new CacheRequest.Builder(videoModel.url)
+                    .setTag(videoModel.cacheTag)
+                    .setDuration(videoModel.duration)
+                    .build());
             mCurrentPosition = 0;
             setVideoController(videoModel.controller);
         }
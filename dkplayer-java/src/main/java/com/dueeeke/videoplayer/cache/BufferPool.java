@@ -0,0 +1,38 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 堆外缓冲池，复用写缓冲，避免每个缓存文件都分配新的堆外内存
+ */
+class BufferPool {
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayDeque<ByteBuffer> sBuffers = new ArrayDeque<>();
+
+    private BufferPool() {
+    }
+
+    static ByteBuffer obtain(int size) {
+        synchronized (sBuffers) {
+            Iterator<ByteBuffer> iterator = sBuffers.iterator();
+            while (iterator.hasNext()) {
+                ByteBuffer buffer = iterator.next();
+                if (buffer.capacity() == size) {
+                    iterator.remove();
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    static void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) sBuffers.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 缓存包的导入和导出，用于预置内容。缓存包是一个目录，包含清单文件和完整缓存的数据文件，
+ * 数据文件名就是缓存key，因此制作和使用缓存包的应用需要使用相同的key生成规则。
+ * 导入时直接移动或复制数据文件，不经过网络，也不计算校验值，导入的条目会被固定，不会被清理。
+ * 缓存包总是明文，缓存加密时导出会解密，导入会加密。
+ */
+public class CacheBundle {
+
+    public static final String MANIFEST_FILE = "bundle.manifest";
+    private static final int MANIFEST_MAGIC = 0x444b4231;//DKB1
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File mCacheDirectory;
+    private final CacheIndex mIndex;
+    private final MemoryCache mMemoryCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param memoryCache 内存缓存，可以为null
+     */
+    public CacheBundle(File cacheDirectory, CacheIndex index, MemoryCache memoryCache) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mIndex = index;
+        this.mMemoryCache = memoryCache;
+    }
+
+    /**
+     * 在后台导入缓存包，已完整缓存的条目只固定不覆盖，正在使用的条目跳过
+     *
+     * @param move 是否移动缓存包中的文件，和缓存目录在同一分区时只需重命名，否则复制
+     */
+    public CacheTask importFrom(final File bundleDirectory, final boolean move, CacheTask.Listener listener) {
+        final CacheTask task = new CacheTask(listener);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                mIndex.awaitLoaded();
+                try {
+                    List<Entry> entries = readManifest(bundleDirectory);
+                    int total = entries.size();
+                    task.publishProgress(0, total);
+                    for (int i = 0; i < total; i++) {
+                        if (task.isCancelled()) break;
+                        success &= importEntry(bundleDirectory, entries.get(i), move);
+                        task.publishProgress(i + 1, total);
+                    }
+                } catch (IOException e) {
+                    L.e("Error importing cache bundle " + bundleDirectory + ": " + e.getMessage());
+                    success = false;
+                }
+                task.complete(success && !task.isCancelled());
+            }
+        });
+        return task;
+    }
+
+    /**
+     * 在后台导出所有完整缓存，未下载完成的条目不导出。清单最后写入，导出中断时缓存包不可用
+     */
+    public CacheTask exportTo(final File bundleDirectory, CacheTask.Listener listener) {
+        final CacheTask task = new CacheTask(listener);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    if (!bundleDirectory.exists() && !bundleDirectory.mkdirs()) {
+                        throw new IOException("Unable to create directory " + bundleDirectory);
+                    }
+                    List<CacheEntry> completed = new ArrayList<>();
+                    for (CacheEntry entry : mIndex.getEntries()) {
+                        if (entry.completed) completed.add(entry);
+                    }
+                    List<Entry> exported = new ArrayList<>();
+                    int total = completed.size();
+                    task.publishProgress(0, total);
+                    for (int i = 0; i < total; i++) {
+                        if (task.isCancelled()) break;
+                        Entry entry = exportEntry(bundleDirectory, completed.get(i).key);
+                        if (entry != null) {
+                            exported.add(entry);
+                        } else {
+                            success = false;
+                        }
+                        task.publishProgress(i + 1, total);
+                    }
+                    if (!task.isCancelled()) writeManifest(bundleDirectory, exported);
+                } catch (IOException e) {
+                    L.e("Error exporting cache bundle " + bundleDirectory + ": " + e.getMessage());
+                    success = false;
+                }
+                task.complete(success && !task.isCancelled());
+            }
+        });
+        return task;
+    }
+
+    private boolean importEntry(File bundleDirectory, Entry entry, boolean move) {
+        //key来自外部的清单，必须是缓存目录中的普通文件名，不能指向目录之外或索引等文件
+        if (!isValidKey(entry.key)) {
+            L.e("Invalid bundle key " + entry.key);
+            return false;
+        }
+        File source = new File(bundleDirectory, entry.key);
+        File target = new File(mCacheDirectory, entry.key);
+        if (!source.isFile() || source.length() != entry.length) {
+            L.e("Invalid bundle entry " + source);
+            return false;
+        }
+        if (mIndex.isCompleted(entry.key) && target.exists()) {
+            mIndex.setPinned(entry.key, true);
+            return true;
+        }
+        //先固定，写入期间不会被清理
+        boolean wasPinned = mIndex.isPinned(entry.key);
+        mIndex.setPinned(entry.key, true);
+        if (!CacheFile.deleteIfUnused(mCacheDirectory, entry.key)) {
+            if (!wasPinned) mIndex.setPinned(entry.key, false);
+            return false;
+        }
+        try {
+            if (mMemoryCache != null) mMemoryCache.remove(entry.key);
+            if (CacheFile.isEncryptionEnabled()) {
+                encrypt(source, target, entry.length);
+                if (move && !source.delete()) L.e("Unable to delete " + source);
+            } else {
+                if (!move || !source.renameTo(target)) copy(source, target);
+                if (move && source.exists() && !source.delete()) L.e("Unable to delete " + source);
+                mIndex.update(entry.key, entry.length, true);
+            }
+            return true;
+        } catch (IOException e) {
+            L.e("Error importing " + source + ": " + e.getMessage());
+            CacheFile.delete(mCacheDirectory, entry.key);
+            mIndex.remove(entry.key);
+            return false;
+        }
+    }
+
+    private boolean isValidKey(String key) {
+        if (key == null || key.isEmpty() || key.contains("/") || key.contains("\\") || key.contains("..")) return false;
+        if (key.startsWith(CacheIndex.JOURNAL_FILE) || key.startsWith(DownloadManager.LIST_FILE)) return false;
+        File file = new File(mCacheDirectory, key);
+        return mCacheDirectory.equals(file.getParentFile()) && key.equals(CacheFile.getKey(file));
+    }
+
+    /**
+     * 复制到临时文件后再重命名，复制中断时不会留下看起来完整的缓存
+     */
+    private static void copy(File source, File target) throws IOException {
+        File tmp = new File(target.getPath() + CacheFile.TEMP_POSTFIX);
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Error renaming file " + tmp + " to " + target);
+        }
+    }
+
+    /**
+     * 通过缓存文件写入，由缓存文件加密并在写完后完成
+     */
+    private static void encrypt(File source, File target, long length) throws IOException {
+        CacheFile cacheFile = CacheFile.acquire(target);
+        FileInputStream in = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                cacheFile.write(position, buffer, 0, read);
+                position += read;
+            }
+            cacheFile.setLength(length);
+            if (!cacheFile.isCompleted()) throw new IOException("Incomplete bundle entry " + source);
+        } finally {
+            in.close();
+            cacheFile.release();
+        }
+    }
+
+    /**
+     * 通过缓存文件读取，缓存加密时得到的是明文。读取期间缓存文件处于使用中，不会被清理
+     */
+    private Entry exportEntry(File bundleDirectory, String key) {
+        File target = new File(bundleDirectory, key);
+        CacheFile cacheFile = null;
+        FileOutputStream out = null;
+        try {
+            cacheFile = CacheFile.acquire(new File(mCacheDirectory, key));
+            if (!cacheFile.isCompleted()) return null;
+            long length = cacheFile.getLength();
+            out = new FileOutputStream(target);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                int read = cacheFile.read(buffer, position);
+                if (read <= 0) throw new IOException("Unexpected end of " + key);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                position += read;
+            }
+            return new Entry(key, length);
+        } catch (IOException e) {
+            L.e("Error exporting " + key + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (cacheFile != null) cacheFile.release();
+        }
+    }
+
+    private static List<Entry> readManifest(File bundleDirectory) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(bundleDirectory, MANIFEST_FILE))));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) throw new IOException("Not a cache bundle");
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(in.readUTF(), in.readLong()));
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeManifest(File bundleDirectory, List<Entry> entries) throws IOException {
+        File manifest = new File(bundleDirectory, MANIFEST_FILE);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.key);
+                out.writeLong(entry.length);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            throw new IOException("Error writing bundle manifest " + manifest);
+        }
+    }
+
+    private static class Entry {
+
+        final String key;
+        final long length;
+
+        Entry(String key, long length) {
+            this.key = key;
+            this.length = length;
+        }
+    }
+}
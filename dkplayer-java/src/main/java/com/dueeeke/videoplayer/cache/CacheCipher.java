@@ -0,0 +1,196 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 缓存文件加密，使用AES-CTR。每个缓存文件的文件头中有随机的nonce，由主密钥和nonce派生出该文件的密钥，
+ * 计数器就是数据的块序号，因此任意位置都可以单独加解密，拖动和随机读取只处理读到的块。
+ * 缓存内容变化时重新生成nonce，同一个密钥流不会加密不同的数据。
+ */
+public class CacheCipher {
+
+    /**
+     * 文件头大小，和写缓冲的对齐大小一致，数据仍然按块对齐
+     */
+    static final int HEADER_SIZE = 4 * 1024;
+    private static final int HEADER_MAGIC = 0x444b4531;//DKE1
+    private static final int NONCE_SIZE = 16;
+    private static final int VERIFIER_SIZE = 16;
+    private static final int BLOCK_SIZE = 16;
+
+    private final byte[] mMasterKey;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * @param masterKey AES密钥，16、24或32字节
+     */
+    public CacheCipher(byte[] masterKey) {
+        if (masterKey == null || (masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32)) {
+            throw new IllegalArgumentException("Key must be 16, 24 or 32 bytes");
+        }
+        this.mMasterKey = masterKey.clone();
+    }
+
+    /**
+     * 文件是否有加密文件头，不需要密钥
+     */
+    static boolean hasHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) return false;
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        readFully(channel, magic, 0);
+        return magic.getInt(0) == HEADER_MAGIC;
+    }
+
+    /**
+     * 读取文件头
+     *
+     * @return 不是加密文件或不是用当前密钥加密时返回null
+     */
+    KeyStream readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) return null;
+        ByteBuffer header = ByteBuffer.allocate(4 + NONCE_SIZE + VERIFIER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != HEADER_MAGIC) return null;
+        byte[] nonce = new byte[NONCE_SIZE];
+        byte[] verifier = new byte[VERIFIER_SIZE];
+        header.get(nonce);
+        header.get(verifier);
+        byte[] derived = derive(nonce);
+        if (!MessageDigest.isEqual(verifier, Arrays.copyOfRange(derived, 32, 32 + VERIFIER_SIZE))) return null;
+        return new KeyStream(Arrays.copyOf(derived, mMasterKey.length));
+    }
+
+    /**
+     * 生成新的nonce并写入文件头，文件应为空
+     */
+    KeyStream writeHeader(FileChannel channel) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        mRandom.nextBytes(nonce);
+        byte[] derived = derive(nonce);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(HEADER_MAGIC);
+        header.put(nonce);
+        header.put(derived, 32, VERIFIER_SIZE);
+        header.clear();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        return new KeyStream(Arrays.copyOf(derived, mMasterKey.length));
+    }
+
+    /**
+     * 由主密钥和nonce派生出文件密钥(前32字节)和用于校验主密钥的值(后16字节)
+     */
+    private byte[] derive(byte[] nonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(mMasterKey, "HmacSHA256"));
+            mac.update(nonce);
+            byte[] key = mac.doFinal(new byte[]{1});
+            mac.update(nonce);
+            byte[] verifier = mac.doFinal(new byte[]{2});
+            byte[] derived = Arrays.copyOf(key, 32 + VERIFIER_SIZE);
+            System.arraycopy(verifier, 0, derived, 32, VERIFIER_SIZE);
+            return derived;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to derive cache key", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of cache file");
+            position += read;
+        }
+    }
+
+    /**
+     * 单个缓存文件的密钥流，加密和解密是同一个操作。不是线程安全的，由{@link CacheFile}的锁保护。
+     * 处理完的位置就是计数器的当前位置，连续的读写直接接着处理，只有位置跳变时才重新初始化Cipher
+     */
+    static class KeyStream {
+
+        private final SecretKeySpec mKey;
+        private final Cipher mCipher;
+        private final byte[] mIv = new byte[BLOCK_SIZE];
+        private final byte[] mSkip = new byte[BLOCK_SIZE];
+        private long mPosition = -1;//计数器当前对应的位置，-1表示未初始化
+
+        KeyStream(byte[] key) throws IOException {
+            mKey = new SecretKeySpec(key, "AES");
+            try {
+                mCipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES/CTR is not available", e);
+            }
+        }
+
+        /**
+         * 处理数据文件中从position开始的length个字节，input和output可以是同一个数组
+         */
+        void crypt(long position, byte[] input, int inputOffset, int length,
+                   byte[] output, int outputOffset) throws IOException {
+            seek(position);
+            try {
+                mCipher.update(input, inputOffset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                mPosition = -1;
+                throw new IOException(e);
+            }
+            mPosition = position + length;
+        }
+
+        /**
+         * 原地处理buffer中剩余的数据，不改变buffer的位置
+         */
+        void crypt(long position, ByteBuffer buffer) throws IOException {
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset() + buffer.position();
+                crypt(position, buffer.array(), offset, buffer.remaining(), buffer.array(), offset);
+                return;
+            }
+            int length = buffer.remaining();
+            seek(position);
+            try {
+                mCipher.update(buffer.duplicate(), buffer.duplicate());
+            } catch (GeneralSecurityException e) {
+                mPosition = -1;
+                throw new IOException(e);
+            }
+            mPosition = position + length;
+        }
+
+        /**
+         * 计数器定位到position所在的块，并跳过块内之前的字节，已经在position时不需要处理
+         */
+        private void seek(long position) throws IOException {
+            if (position == mPosition) return;
+            mPosition = -1;
+            long block = position / BLOCK_SIZE;
+            for (int i = 0; i < 8; i++) {
+                mIv[BLOCK_SIZE - 1 - i] = (byte) (block >>> (8 * i));
+            }
+            try {
+                mCipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(mIv));
+                int skip = (int) (position % BLOCK_SIZE);
+                if (skip > 0) mCipher.update(mSkip, 0, skip, mSkip, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.cache.evictor.CacheEvictor;
+import com.dueeeke.videoplayer.util.StorageUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程删除缓存，清理大量缓存时不阻塞主线程。
+ * 正在播放、预加载或下载的缓存不会被删除，避免删除正在读写的文件
+ */
+public class CacheCleaner {
+
+    private final File mCacheDirectory;
+    private final CacheEvictor mEvictor;
+    private final CacheIndex mIndex;
+    private final MemoryCache mMemoryCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param memoryCache 内存缓存，可以为null
+     */
+    public CacheCleaner(File cacheDirectory, CacheEvictor evictor, MemoryCache memoryCache) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mEvictor = evictor;
+        this.mIndex = evictor.getIndex();
+        this.mMemoryCache = memoryCache;
+    }
+
+    /**
+     * 删除所有缓存，离线下载固定的缓存和正在使用的缓存保留
+     */
+    public CacheTask clearAll(CacheTask.Listener listener) {
+        final CacheTask task = new CacheTask(listener);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = delete(getDeletableKeys(), task);
+                if (success && !task.isCancelled()) success = deleteStrayFiles();
+                task.complete(success && !task.isCancelled());
+            }
+        });
+        return task;
+    }
+
+    /**
+     * 在当前线程删除所有缓存，离线下载固定的缓存和正在使用的缓存保留
+     */
+    public boolean clearAllNow() {
+        boolean success = true;
+        for (String key : getDeletableKeys()) {
+            if (!delete(key)) success = false;
+        }
+        return deleteStrayFiles() && success;
+    }
+
+    /**
+     * 在当前线程删除指定key的缓存
+     *
+     * @return 是否删除成功，缓存正在使用时返回false
+     */
+    public boolean clearNow(String key) {
+        return delete(key);
+    }
+
+    /**
+     * 删除指定key的缓存，缓存正在使用时不删除，结果为失败
+     */
+    public CacheTask clear(String key, CacheTask.Listener listener) {
+        final CacheTask task = new CacheTask(listener);
+        final List<String> keys = Collections.singletonList(key);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = delete(keys, task);
+                task.complete(success && !task.isCancelled());
+            }
+        });
+        return task;
+    }
+
+    private List<String> getDeletableKeys() {
+        List<String> keys = new ArrayList<>();
+        for (CacheEntry entry : mIndex.getEntries()) {
+            if (!entry.pinned && !mEvictor.isInUse(entry.key)) keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    /**
+     * 删除索引中没有记录的文件和HLS播放列表，保留索引中的缓存、正在下载的临时文件、索引和下载列表
+     */
+    private boolean deleteStrayFiles() {
+        mIndex.awaitLoaded();
+        boolean success = StorageUtil.deleteFiles(new File(mCacheDirectory, HlsCache.PLAYLIST_DIRECTORY));
+        File[] files = mCacheDirectory.listFiles();
+        if (files == null) return success;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || name.startsWith(CacheIndex.JOURNAL_FILE)
+                    || name.startsWith(DownloadManager.LIST_FILE)) continue;
+            String key = CacheFile.getKey(file);
+            if (mIndex.get(key) != null || mEvictor.isInUse(key)) continue;
+            if (!file.delete()) success = false;
+        }
+        return success;
+    }
+
+    private boolean delete(List<String> keys, CacheTask task) {
+        boolean success = true;
+        int total = keys.size();
+        task.publishProgress(0, total);
+        for (int i = 0; i < total; i++) {
+            if (task.isCancelled()) return false;
+            if (!delete(keys.get(i))) success = false;
+            task.publishProgress(i + 1, total);
+        }
+        return success;
+    }
+
+    /**
+     * 删除单个缓存，正在使用的缓存不删除，否则会删除正在读写的临时文件和区间索引
+     */
+    private boolean delete(String key) {
+        if (!mEvictor.deleteIfUnused(key)) return false;
+        mIndex.remove(key);
+        if (mMemoryCache != null) mMemoryCache.remove(key);
+        return true;
+    }
+}
@@ -0,0 +1,258 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.dueeeke.videoplayer.cache.admission.AdmissionPolicy;
+import com.dueeeke.videoplayer.cache.admission.RuleAdmissionPolicy;
+import com.dueeeke.videoplayer.cache.evictor.EvictionPolicy;
+import com.dueeeke.videoplayer.cache.evictor.LruEvictionPolicy;
+
+/**
+ * 缓存配置类，通过 {@link com.dueeeke.videoplayer.player.VideoCacheManager#setCacheConfig(CacheConfig)} 设置
+ */
+public class CacheConfig {
+
+    public EvictionPolicy mEvictionPolicy;//清理策略
+    public long maxCacheSize;//缓存最大字节数
+    public int maxCacheCount;//缓存最大条目数
+    public long ttl;//缓存有效期，单位毫秒
+    public int maxDiskPercent;//最多占用可用空间的百分比
+    public long minFreeSpace;//至少保留的剩余空间
+    public FileNameGenerator mKeyGenerator;//缓存key生成器
+    public long memoryCacheSize;//内存缓存大小，小于0时根据内存等级计算
+    public long memoryHeadSize;//每个视频在内存中缓存的开头字节数
+    public int writeBufferSize;//写缓冲大小
+    public long syncBytes;//每写入多少字节持久化一次
+    public boolean fsync;//持久化时是否fsync
+    public AdmissionPolicy mAdmissionPolicy;//缓存准入策略
+    public long progressInterval;//缓存进度回调的最小间隔，单位毫秒
+    public int maxParallelDownloads;//同时进行的离线下载数
+    public int maxConnectionsPerHost;//每个域名的最大连接数，大文件分段并行下载
+    public CacheCipher mCipher;//缓存加密，null表示不加密
+    public int revalidatePolicy;//缓存重新验证策略，见CacheRevalidator
+    public long revalidateInterval;//重新验证的间隔，单位毫秒
+
+    private CacheConfig(CacheConfig origin) {
+        this.mEvictionPolicy = origin.mEvictionPolicy;
+        this.maxCacheSize = origin.maxCacheSize;
+        this.maxCacheCount = origin.maxCacheCount;
+        this.ttl = origin.ttl;
+        this.maxDiskPercent = origin.maxDiskPercent;
+        this.minFreeSpace = origin.minFreeSpace;
+        this.mKeyGenerator = origin.mKeyGenerator;
+        this.memoryCacheSize = origin.memoryCacheSize;
+        this.memoryHeadSize = origin.memoryHeadSize;
+        this.writeBufferSize = origin.writeBufferSize;
+        this.syncBytes = origin.syncBytes;
+        this.fsync = origin.fsync;
+        this.mAdmissionPolicy = origin.mAdmissionPolicy;
+        this.progressInterval = origin.progressInterval;
+        this.maxParallelDownloads = origin.maxParallelDownloads;
+        this.maxConnectionsPerHost = origin.maxConnectionsPerHost;
+        this.mCipher = origin.mCipher;
+        this.revalidatePolicy = origin.revalidatePolicy;
+        this.revalidateInterval = origin.revalidateInterval;
+    }
+
+    private CacheConfig() {
+        mEvictionPolicy = new LruEvictionPolicy();
+        maxCacheSize = Long.MAX_VALUE;
+        maxCacheCount = Integer.MAX_VALUE;
+        maxDiskPercent = 20;
+        minFreeSpace = 200 * 1024 * 1024;
+        mKeyGenerator = new Md5FileNameGenerator();
+        memoryCacheSize = -1;
+        memoryHeadSize = 1024 * 1024;
+        writeBufferSize = 256 * 1024;
+        syncBytes = 2 * 1024 * 1024;
+        fsync = true;
+        mAdmissionPolicy = new RuleAdmissionPolicy.Builder().build();
+        progressInterval = CacheProgressDispatcher.DEFAULT_INTERVAL;
+        maxParallelDownloads = 2;
+        maxConnectionsPerHost = OriginFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        revalidatePolicy = CacheRevalidator.POLICY_NEVER;
+        revalidateInterval = 24 * 60 * 60 * 1000;
+    }
+
+    /**
+     * 根据磁盘空间计算当前的缓存配额
+     *
+     * @param cacheSize   当前缓存占用的字节数
+     * @param usableSpace 磁盘剩余空间
+     */
+    public long getQuota(long cacheSize, long usableSpace) {
+        long quota = maxCacheSize;
+        if (maxDiskPercent > 0) {
+            quota = Math.min(quota, (cacheSize + usableSpace) / 100 * maxDiskPercent);
+        }
+        return Math.max(0, Math.min(quota, cacheSize + usableSpace - minFreeSpace));
+    }
+
+    public static class Builder {
+
+        private CacheConfig target;
+
+        public Builder() {
+            target = new CacheConfig();
+        }
+
+        /**
+         * 设置清理策略，默认为{@link LruEvictionPolicy}
+         */
+        public Builder setEvictionPolicy(EvictionPolicy evictionPolicy) {
+            target.mEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * 设置缓存最大字节数，默认不限制，由可用空间决定
+         */
+        public Builder setMaxCacheSize(long maxCacheSize) {
+            target.maxCacheSize = maxCacheSize;
+            return this;
+        }
+
+        /**
+         * 设置缓存最大条目数
+         */
+        public Builder setMaxCacheCount(int maxCacheCount) {
+            target.maxCacheCount = maxCacheCount;
+            return this;
+        }
+
+        /**
+         * 设置缓存有效期，从写入开始计算，过期的缓存会被清理
+         */
+        public Builder setTtl(long ttl) {
+            target.ttl = ttl;
+            return this;
+        }
+
+        /**
+         * 设置缓存最多占用磁盘空间(缓存+剩余空间)的百分比，默认20，传0表示不限制
+         */
+        public Builder setMaxDiskPercent(int maxDiskPercent) {
+            target.maxDiskPercent = maxDiskPercent;
+            return this;
+        }
+
+        /**
+         * 设置磁盘至少保留的剩余空间，默认200M
+         */
+        public Builder setMinFreeSpace(long minFreeSpace) {
+            target.minFreeSpace = minFreeSpace;
+            return this;
+        }
+
+        /**
+         * 设置缓存key生成器，默认对完整url计算md5。
+         * url带有会变化的签名参数时可使用{@link CacheKeyGenerator}去掉这些参数，提高缓存命中率
+         */
+        public Builder setKeyGenerator(FileNameGenerator keyGenerator) {
+            target.mKeyGenerator = keyGenerator;
+            return this;
+        }
+
+        /**
+         * 设置内存缓存大小，默认根据应用的内存等级计算，传0表示关闭内存缓存
+         */
+        public Builder setMemoryCacheSize(long memoryCacheSize) {
+            target.memoryCacheSize = memoryCacheSize;
+            return this;
+        }
+
+        /**
+         * 设置每个视频在内存中缓存的开头字节数，默认1M
+         */
+        public Builder setMemoryHeadSize(long memoryHeadSize) {
+            target.memoryHeadSize = memoryHeadSize;
+            return this;
+        }
+
+        /**
+         * 设置写缓冲大小，默认256K，连续写入的数据合并后一次写入磁盘，传0表示不缓冲
+         */
+        public Builder setWriteBufferSize(int writeBufferSize) {
+            target.writeBufferSize = writeBufferSize;
+            return this;
+        }
+
+        /**
+         * 设置每写入多少字节刷新数据并持久化一次已缓存区间，默认2M。
+         * 值越大写入越快，进程被杀后需要重新下载的数据越多
+         */
+        public Builder setSyncBytes(long syncBytes) {
+            target.syncBytes = syncBytes;
+            return this;
+        }
+
+        /**
+         * 持久化时不调用fsync，写入更快，但断电时可能丢失最近写入的数据
+         */
+        public Builder disableFsync() {
+            target.fsync = false;
+            return this;
+        }
+
+        /**
+         * 设置缓存准入策略，决定每个视频完整缓存、只缓存开头还是不缓存，
+         * 默认为{@link RuleAdmissionPolicy}的默认规则
+         */
+        public Builder setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+            target.mAdmissionPolicy = admissionPolicy;
+            return this;
+        }
+
+        /**
+         * 设置缓存进度回调的最小间隔，单位毫秒，默认约为一帧
+         */
+        public Builder setProgressInterval(long progressInterval) {
+            target.progressInterval = progressInterval;
+            return this;
+        }
+
+        /**
+         * 设置同时进行的离线下载数，默认2个，最多{@link OriginFetcher#MAX_PARALLEL_DOWNLOADS}个
+         */
+        public Builder setMaxParallelDownloads(int maxParallelDownloads) {
+            target.maxParallelDownloads = Math.max(1, Math.min(maxParallelDownloads, OriginFetcher.MAX_PARALLEL_DOWNLOADS));
+            return this;
+        }
+
+        /**
+         * 设置每个域名同时建立的最大连接数，默认4个。源站支持Range的大文件会分段并行下载，
+         * 实际连接数按下载速度调整，设为1时不分段下载
+         */
+        public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            target.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * 设置缓存加密的主密钥，16、24或32字节，由应用自行保管。设置后缓存以AES-CTR加密保存，
+         * 完整缓存的视频也经过数据源或本地代理解密播放。开启、关闭或更换密钥后，已有的缓存会在下次使用时丢弃
+         */
+        public Builder setEncryptionKey(byte[] encryptionKey) {
+            target.mCipher = encryptionKey == null ? null : new CacheCipher(encryptionKey);
+            return this;
+        }
+
+        /**
+         * 设置完整缓存的重新验证策略，默认不验证。验证时向源站发送带If-None-Match或If-Modified-Since的HEAD请求，
+         * 源站返回304时继续使用缓存，内容变化时丢弃缓存重新下载，网络错误时仍使用缓存
+         *
+         * @param policy   {@link CacheRevalidator#POLICY_NEVER}、{@link CacheRevalidator#POLICY_AFTER_INTERVAL}
+         *                 或{@link CacheRevalidator#POLICY_ALWAYS}
+         * @param interval 距上次下载或验证超过此时间后才验证，单位毫秒，只对POLICY_AFTER_INTERVAL有效
+         */
+        public Builder setRevalidatePolicy(int policy, long interval) {
+            target.revalidatePolicy = policy;
+            target.revalidateInterval = interval;
+            return this;
+        }
+
+        public CacheConfig build() {
+            return new CacheConfig(target);
+        }
+    }
+}
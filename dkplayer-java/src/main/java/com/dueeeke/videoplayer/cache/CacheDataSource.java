@@ -0,0 +1,220 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import tv.danmaku.ijk.media.player.misc.IMediaDataSource;
+
+/**
+ * 边下边播数据源，直接交给IjkPlayer读取，无需经过本地代理。
+ * 已缓存的区间从磁盘读取，未缓存的区间由{@link OriginFetcher}下载到缓存文件的对应位置，
+ * 拖动进度后下载的数据同样会被缓存。多个播放器同时播放同一个视频时共用同一个下载。
+ */
+public class CacheDataSource implements IMediaDataSource {
+
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+    private final File mCompletedFile;
+    private final String mKey;
+    private final OriginFetcher mFetcher;
+    private final OriginFetcher.Waiter mWaiter = new OriginFetcher.Waiter();
+    private OriginFetcher.FetchTask mFetchTask;
+    private CacheFile mCacheFile;
+    private MemoryCache mMemoryCache;
+    private CacheRevalidator mRevalidator;
+    private boolean mRevalidated;
+    private long mCacheLimit = Long.MAX_VALUE;
+    private volatile HttpUrlSource mDirectSource;
+    private long mDirectPosition = -1;
+    private final CacheMetrics mMetrics = new CacheMetrics();
+    private OnSessionFinishedListener mOnSessionFinishedListener;
+
+    public interface OnSessionFinishedListener {
+        /**
+         * 数据源关闭，在关闭数据源的线程回调
+         */
+        void onSessionFinished(String url, CacheMetrics session);
+    }
+
+    /**
+     * @param fetcher 源站下载，和本地代理、预加载共用
+     */
+    public CacheDataSource(String url, Map<String, String> headers, File cacheFile, OriginFetcher fetcher) throws IOException {
+        this.mUrl = url;
+        this.mHeaders = headers;
+        this.mCompletedFile = cacheFile;
+        this.mKey = cacheFile.getName();
+        this.mFetcher = fetcher;
+        this.mCacheFile = CacheFile.acquire(cacheFile);
+    }
+
+    /**
+     * 设置内存缓存，视频开头优先从内存读取
+     */
+    public void setMemoryCache(MemoryCache memoryCache) {
+        this.mMemoryCache = memoryCache;
+    }
+
+    /**
+     * 设置重新验证，第一次读取前按策略验证完整缓存是否仍然有效
+     */
+    public void setRevalidator(CacheRevalidator revalidator) {
+        this.mRevalidator = revalidator;
+    }
+
+    /**
+     * 只缓存前limit个字节，之后的数据直接从网络读取，不写入缓存
+     */
+    public void setCacheLimit(long limit) {
+        this.mCacheLimit = limit;
+    }
+
+    public void setOnSessionFinishedListener(OnSessionFinishedListener listener) {
+        this.mOnSessionFinishedListener = listener;
+    }
+
+    /**
+     * 获取本次播放的缓存命中统计
+     */
+    public CacheMetrics getMetrics() {
+        return mMetrics.copy();
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+        if (mCacheFile == null) throw new IOException("Data source is closed");
+        revalidate();
+        if (mMemoryCache != null) {
+            int read = mMemoryCache.read(mKey, position, buffer, offset, size);
+            if (read > 0) {
+                mMetrics.addMemoryBytes(read);
+                return read;
+            }
+        }
+        long startTime = 0;
+        long cachedEnd;
+        if (position >= mCacheLimit && mCacheFile.getCachedEnd(position) <= position) {
+            return readDirect(position, buffer, offset, size);
+        }
+        while ((cachedEnd = mCacheFile.getCachedEnd(position)) <= position) {
+            long length = mCacheFile.getLength();
+            if (length >= 0 && position >= length) return -1;
+            //等待下载到position，和其他读取方共用同一个下载
+            if (startTime == 0) startTime = System.nanoTime();
+            awaitFetch(position);
+        }
+        int length = (int) Math.min(size, cachedEnd - position);
+        int read = mCacheFile.read(buffer, position, offset, length);
+        if (read <= 0) return read;
+        if (startTime == 0) {
+            mMetrics.addDiskBytes(read);
+        } else {
+            mMetrics.addNetworkBytes(read, (System.nanoTime() - startTime) / 1000000);
+        }
+        if (mMemoryCache != null) mMemoryCache.write(mKey, position, buffer, offset, read);
+        //超出缓存范围后不再等待下载，没有其他读取方时下载会被取消
+        if (position + read >= mCacheLimit) releaseFetch();
+        return read;
+    }
+
+    /**
+     * 在播放器的读取线程验证，只验证一次。内容变化时缓存文件已被清空，之后按未缓存读取
+     */
+    private void revalidate() {
+        if (mRevalidated) return;
+        mRevalidated = true;
+        if (mRevalidator != null && mRevalidator.needsRevalidation(mKey)) {
+            mRevalidator.revalidate(mUrl, mHeaders, mKey);
+        }
+    }
+
+    /**
+     * 超出缓存范围的数据直接从网络读取
+     */
+    private int readDirect(long position, byte[] buffer, int offset, int size) throws IOException {
+        long length = mCacheFile.getLength();
+        if (length >= 0 && position >= length) return -1;
+        long startTime = System.nanoTime();
+        if (mDirectSource == null) mDirectSource = new HttpUrlSource(mUrl, mHeaders);
+        if (mDirectPosition != position) {
+            mDirectSource.close();
+            mDirectPosition = -1;
+            mDirectSource.open(position);
+            mDirectPosition = position;
+        }
+        int read = mDirectSource.read(buffer, offset, size);
+        mMetrics.addNetworkBytes(Math.max(read, 0), (System.nanoTime() - startTime) / 1000000);
+        if (read > 0) mDirectPosition += read;
+        return read;
+    }
+
+    /**
+     * 确保有下载经过position，并等待新数据
+     */
+    private void awaitFetch(long position) throws IOException {
+        if (mFetchTask == null || !mFetchTask.covers(position)) {
+            //先请求新的下载再释放旧的
+            OriginFetcher.FetchTask previous = mFetchTask;
+            mFetchTask = mFetcher.request(mUrl, mHeaders, mCompletedFile, position, mCacheLimit, mWaiter);
+            if (previous != null) mFetcher.removeListener(previous, mWaiter);
+        }
+        mWaiter.await();
+    }
+
+    private void releaseFetch() {
+        if (mFetchTask != null) {
+            mFetcher.removeListener(mFetchTask, mWaiter);
+            mFetchTask = null;
+        }
+    }
+
+    /**
+     * 长度未知时等待源站的第一个响应，源站没有返回长度(如chunked)时返回-1，不等待下载完成
+     */
+    @Override
+    public synchronized long getSize() throws IOException {
+        if (mCacheFile == null) throw new IOException("Data source is closed");
+        revalidate();
+        if (mCacheFile.getLength() < 0) {
+            //从第一个未缓存的位置开始下载，后续顺序读取时可直接等待该下载
+            long startTime = System.nanoTime();
+            long position = mCacheFile.getCachedEnd(0);
+            while (mCacheFile.getLength() < 0 && (mFetchTask == null || !mFetchTask.isOpened())) {
+                awaitFetch(position);
+            }
+            mMetrics.addNetworkBytes(0, (System.nanoTime() - startTime) / 1000000);
+        }
+        return mCacheFile.getLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        //唤醒阻塞中的读取，读取持有本对象的锁
+        mWaiter.cancel();
+        HttpUrlSource directSource = mDirectSource;
+        if (directSource != null) directSource.close();
+        closeSession();
+    }
+
+    private synchronized void closeSession() {
+        releaseFetch();
+        if (mDirectSource != null) {
+            mDirectSource.close();
+            mDirectPosition = -1;
+        }
+        if (mCacheFile != null) {
+            mCacheFile.release();
+            mCacheFile = null;
+            mMetrics.finishSession();
+            if (mOnSessionFinishedListener != null) {
+                mOnSessionFinishedListener.onSessionFinished(mUrl, mMetrics.copy());
+            }
+        }
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+}
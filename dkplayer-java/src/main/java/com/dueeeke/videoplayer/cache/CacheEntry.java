@@ -0,0 +1,38 @@
+package com.dueeeke.videoplayer.cache;
+
+/**
+ * 缓存条目信息，用于清理策略
+ */
+public class CacheEntry {
+
+    public final String key;//缓存文件名
+    public long size;//占用的磁盘空间
+    public long lastAccessTime;//最后访问时间
+    public long createTime;//创建时间
+    public int accessCount;//访问次数
+    public boolean completed;//是否已完整缓存
+    public long ttl;//单独设置的有效期，0表示使用全局配置
+    public boolean pinned;//离线下载的条目，不会被清理，也不计入配额
+    public String eTag;//源站的ETag，用于验证缓存是否仍然有效
+    public String lastModified;//源站的Last-Modified
+    public long validateTime;//最后一次从源站下载或验证的时间
+
+    public CacheEntry(String key) {
+        this.key = key;
+    }
+
+    public CacheEntry copy() {
+        CacheEntry entry = new CacheEntry(key);
+        entry.size = size;
+        entry.lastAccessTime = lastAccessTime;
+        entry.createTime = createTime;
+        entry.accessCount = accessCount;
+        entry.completed = completed;
+        entry.ttl = ttl;
+        entry.pinned = pinned;
+        entry.eTag = eTag;
+        entry.lastModified = lastModified;
+        entry.validateTime = validateTime;
+        return entry;
+    }
+}
@@ -0,0 +1,608 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分段缓存文件。未下载完成时数据写入 .part 文件的对应位置，已缓存的区间和源站的ETag/Last-Modified
+ * 记录在 .part.idx 中，因此任意位置下载的数据都可以保存并读取，拖动进度不会丢弃已下载的数据，
+ * 进程被杀后也可以校验后续传。
+ * 全部下载完成后重命名为最终文件并删除索引。
+ * 设置了{@link CacheCipher}时数据文件带有加密文件头，数据以密文保存，读写时按位置加解密。
+ * <p>
+ * 同一个文件在进程内只有一个实例，通过 {@link #acquire(File)} 和 {@link #release()} 共享。
+ */
+public class CacheFile {
+
+    static final String TEMP_POSTFIX = ".part";
+    static final String INDEX_POSTFIX = ".idx";
+    /**
+     * 旧版本及代理缓存使用的顺序写入临时文件
+     */
+    static final String LEGACY_TEMP_POSTFIX = ".download";
+
+    private static final int INDEX_MAGIC_V1 = 0x444b4331;//DKC1
+    private static final int INDEX_MAGIC = 0x444b4332;//DKC2，增加了校验信息
+    /**
+     * 写缓冲按此大小对齐文件位置，使每次写入都落在完整的块上
+     */
+    private static final int WRITE_ALIGNMENT = 4 * 1024;
+
+    private static final Map<String, CacheFile> sOpenFiles = new HashMap<>();
+    private static OnCacheChangedListener sOnCacheChangedListener;
+    private static int sWriteBufferSize = 256 * 1024;
+    private static long sSyncBytes = 2 * 1024 * 1024;
+    private static boolean sFsync = true;
+    private static volatile CacheCipher sCipher;
+
+    /**
+     * 缓存文件大小、状态或校验信息变化监听，用于更新缓存索引。
+     * 下载完成后缓存文件不再保存校验信息，由缓存索引保存，用于之后的重新验证
+     */
+    public interface OnCacheChangedListener {
+        void onCacheChanged(String key, long size, boolean completed);
+
+        void onValidatorsChanged(String key, String eTag, String lastModified);
+    }
+
+    public static void setOnCacheChangedListener(OnCacheChangedListener listener) {
+        sOnCacheChangedListener = listener;
+    }
+
+    /**
+     * 设置写入策略，对之后写入的数据生效
+     *
+     * @param writeBufferSize 写缓冲大小，连续的小块写入合并后一次写入磁盘，0表示不缓冲
+     * @param syncBytes       每写入这么多字节刷新数据并持久化一次索引
+     * @param fsync           持久化索引前是否fsync，关闭后写入更快，但断电时可能丢失数据
+     */
+    public static synchronized void setWriteOptions(int writeBufferSize, long syncBytes, boolean fsync) {
+        sWriteBufferSize = Math.max(0, writeBufferSize);
+        sSyncBytes = syncBytes;
+        sFsync = fsync;
+    }
+
+    /**
+     * 设置缓存加密，null表示不加密。对之后打开的缓存文件生效，加密设置或密钥不一致的已有缓存会被丢弃
+     */
+    public static void setCipher(CacheCipher cipher) {
+        sCipher = cipher;
+    }
+
+    /**
+     * 缓存是否加密，加密的缓存文件不能直接交给播放器
+     */
+    public static boolean isEncryptionEnabled() {
+        return sCipher != null;
+    }
+
+    private final File mCompletedFile;
+    private final File mIndexFile;
+    private final RangeSet mRanges = new RangeSet();
+    private File mFile;
+    private RandomAccessFile mDataFile;
+    private FileChannel mChannel;
+    private CacheCipher.KeyStream mKeyStream;//不加密时为null
+    private long mHeaderSize;//数据在文件中的偏移
+    private byte[] mCryptBuffer;
+    private ByteBuffer mWriteBuffer;//尚未写入磁盘的连续数据
+    private long mWriteBufferPosition;//写缓冲对应的文件位置
+    private long mLength = -1;
+    private String mETag;
+    private String mLastModified;
+    private long mUnsyncedBytes;
+    private int mRefCount;
+
+    /**
+     * 获取缓存文件，用完后需调用 {@link #release()}
+     *
+     * @param completedFile 下载完成后的文件
+     */
+    public static CacheFile acquire(File completedFile) throws IOException {
+        synchronized (sOpenFiles) {
+            String key = completedFile.getAbsolutePath();
+            CacheFile cacheFile = sOpenFiles.get(key);
+            if (cacheFile == null) {
+                cacheFile = new CacheFile(completedFile);
+                sOpenFiles.put(key, cacheFile);
+            }
+            cacheFile.mRefCount++;
+            return cacheFile;
+        }
+    }
+
+    /**
+     * 缓存文件是否正在被使用
+     */
+    public static boolean isInUse(File completedFile) {
+        synchronized (sOpenFiles) {
+            return sOpenFiles.containsKey(completedFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 根据文件名获取缓存的key，即去掉临时文件和索引文件后缀的文件名
+     */
+    public static String getKey(File file) {
+        String name = file.getName();
+        for (String postfix : new String[]{INDEX_POSTFIX + ".tmp", INDEX_POSTFIX, TEMP_POSTFIX, LEGACY_TEMP_POSTFIX}) {
+            if (name.endsWith(postfix)) {
+                name = name.substring(0, name.length() - postfix.length());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 缓存文件没有被使用时删除。检查和删除都持有打开文件表的锁，期间其他线程无法打开该缓存
+     *
+     * @return 是否已删除，正在使用或删除失败时返回false
+     */
+    public static boolean deleteIfUnused(File directory, String key) {
+        synchronized (sOpenFiles) {
+            if (sOpenFiles.containsKey(new File(directory, key).getAbsolutePath())) return false;
+            return delete(directory, key);
+        }
+    }
+
+    /**
+     * 删除key对应的所有缓存文件
+     */
+    public static boolean delete(File directory, String key) {
+        boolean deleted = true;
+        for (String postfix : new String[]{"", TEMP_POSTFIX, TEMP_POSTFIX + INDEX_POSTFIX, LEGACY_TEMP_POSTFIX}) {
+            File file = new File(directory, key + postfix);
+            if (file.exists() && !file.delete()) deleted = false;
+        }
+        return deleted;
+    }
+
+    private CacheFile(File completedFile) throws IOException {
+        File directory = completedFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+        mCompletedFile = completedFile;
+        mIndexFile = new File(directory, completedFile.getName() + TEMP_POSTFIX + INDEX_POSTFIX);
+        boolean reset = false;
+        if (completedFile.exists()) {
+            mFile = completedFile;
+            mDataFile = new RandomAccessFile(mFile, "r");
+            mChannel = mDataFile.getChannel();
+            if (openHeader()) {
+                mLength = mDataFile.length() - mHeaderSize;
+                mRanges.add(0, mLength);
+                return;
+            }
+            //加密设置变化，旧的缓存无法使用，重新下载
+            closeQuietly(mDataFile);
+            if (!completedFile.delete()) throw new IOException("Unable to reset cache file " + completedFile);
+            reset = true;
+        }
+        mFile = new File(directory, completedFile.getName() + TEMP_POSTFIX);
+        File legacyFile = new File(directory, completedFile.getName() + LEGACY_TEMP_POSTFIX);
+        if (!mFile.exists() && legacyFile.exists() && legacyFile.renameTo(mFile)) {
+            //顺序写入的旧文件，已缓存的部分就是[0, length)
+            mRanges.add(0, mFile.length());
+            writeIndex();
+        } else if (!readIndex()) {
+            mRanges.clear();
+            //索引必须先于数据存在，否则无法区分数据文件中哪些位置是有效的
+            writeIndex();
+            if (mFile.exists() && !mFile.delete()) {
+                throw new IOException("Unable to reset cache file " + mFile);
+            }
+        }
+        mDataFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mDataFile.getChannel();
+        if (mDataFile.length() > 0 && !openHeader()) {
+            L.d("encryption of " + mFile + " changed, discard cached data");
+            mRanges.clear();
+            mLength = -1;
+            mETag = null;
+            mLastModified = null;
+            writeIndex();
+            mDataFile.setLength(0);
+            reset = true;
+        }
+        if (mDataFile.length() == 0) createHeader();
+        if (reset) notifyCacheChanged();
+    }
+
+    /**
+     * 读取已有数据文件的文件头，加密设置或密钥和当前不一致时返回false
+     */
+    private boolean openHeader() throws IOException {
+        CacheCipher cipher = sCipher;
+        if (cipher == null) return !CacheCipher.hasHeader(mChannel);
+        mKeyStream = cipher.readHeader(mChannel);
+        mHeaderSize = mKeyStream == null ? 0 : CacheCipher.HEADER_SIZE;
+        return mKeyStream != null;
+    }
+
+    /**
+     * 为空的数据文件写入文件头，加密时每次都使用新的nonce
+     */
+    private void createHeader() throws IOException {
+        CacheCipher cipher = sCipher;
+        mKeyStream = cipher == null ? null : cipher.writeHeader(mChannel);
+        mHeaderSize = mKeyStream == null ? 0 : CacheCipher.HEADER_SIZE;
+    }
+
+    private boolean readIndex() {
+        if (!mIndexFile.exists()) return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            int magic = in.readInt();
+            if (magic != INDEX_MAGIC && magic != INDEX_MAGIC_V1) return false;
+            mLength = in.readLong();
+            if (magic == INDEX_MAGIC) {
+                mETag = emptyToNull(in.readUTF());
+                mLastModified = emptyToNull(in.readUTF());
+            }
+            mRanges.read(in);
+            return true;
+        } catch (IOException e) {
+            L.e("Error reading cache index " + mIndexFile + ": " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 先写入临时文件再重命名，避免进程被杀时索引损坏。索引中的区间必须已经写入数据文件，因此先清空写缓冲
+     */
+    private void writeIndex() throws IOException {
+        flushWriteBuffer();
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(mLength);
+            out.writeUTF(mETag == null ? "" : mETag);
+            out.writeUTF(mLastModified == null ? "" : mLastModified);
+            mRanges.write(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mIndexFile)) {
+            throw new IOException("Error writing cache index " + mIndexFile);
+        }
+        mUnsyncedBytes = 0;
+    }
+
+    /**
+     * 视频总长度，未知时返回-1
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    public synchronized void setLength(long length) throws IOException {
+        if (length < 0 || length == mLength || isCompleted()) return;
+        mLength = length;
+        if (mRanges.getContiguousEnd(0) >= mLength) {
+            complete();
+        } else {
+            writeIndex();
+        }
+    }
+
+    public synchronized String getETag() {
+        return mETag;
+    }
+
+    public synchronized String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 打开源站连接，续传时校验源站内容，内容变化时丢弃已缓存的部分
+     *
+     * @return 是否丢弃了已缓存的数据
+     */
+    public boolean openSource(HttpUrlSource source, long position) throws IOException {
+        return openSource(source, position, -1);
+    }
+
+    /**
+     * 打开源站连接，只请求[position, end)，用于分段下载
+     *
+     * @param end 结束位置，-1表示到结尾
+     * @return 是否丢弃了已缓存的数据
+     */
+    public boolean openSource(HttpUrlSource source, long position, long end) throws IOException {
+        //网络请求不持有锁，避免阻塞其他线程读取缓存
+        synchronized (this) {
+            source.setValidators(mETag, mLastModified);
+        }
+        source.open(position, end);
+        synchronized (this) {
+            if (isCompleted()) return false;
+            long length = source.length();
+            boolean changed = source.isContentChanged() || (mLength >= 0 && length >= 0 && mLength != length);
+            if (changed) {
+                L.d("content of " + source.getUrl() + " changed, discard " + mRanges.getBytes() + " cached bytes");
+                mRanges.clear();
+                mLength = -1;
+                discardWriteBuffer();
+                mDataFile.setLength(0);
+                createHeader();
+            }
+            boolean validatorsChanged = !equals(mETag, source.getETag()) || !equals(mLastModified, source.getLastModified());
+            mETag = source.getETag();
+            mLastModified = source.getLastModified();
+            if (length >= 0 && length != mLength) {
+                setLength(length);
+            } else if (changed || validatorsChanged) {
+                writeIndex();
+            }
+            if (changed) notifyCacheChanged();
+            return changed;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * 已缓存的字节数
+     */
+    public synchronized long available() {
+        return mRanges.getBytes();
+    }
+
+    public synchronized boolean isCached(long position) {
+        return mRanges.contains(position);
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置
+     */
+    public synchronized long getCachedEnd(long position) {
+        return mRanges.getContiguousEnd(position);
+    }
+
+    /**
+     * position之后下一个已缓存区间的起始位置，没有时返回-1
+     */
+    public synchronized long getNextCachedStart(long position) {
+        return mRanges.getNextStart(position);
+    }
+
+    /**
+     * 已缓存的区间，左闭右开
+     */
+    public synchronized List<long[]> getCachedRanges() {
+        return mRanges.getRanges();
+    }
+
+    /**
+     * [start, end) 范围内未缓存的区间
+     */
+    public synchronized List<long[]> getGaps(long start, long end) {
+        return mRanges.getGaps(start, end);
+    }
+
+    public synchronized int read(byte[] buffer, long position, int offset, int length) throws IOException {
+        return read(ByteBuffer.wrap(buffer, offset, length), position);
+    }
+
+    /**
+     * 读取数据到buffer中，读取的字节数由buffer的剩余空间决定
+     */
+    public synchronized int read(ByteBuffer buffer, long position) throws IOException {
+        if (mWriteBuffer != null && position < mWriteBufferPosition + mWriteBuffer.position()
+                && position + buffer.remaining() > mWriteBufferPosition) {
+            flushWriteBuffer();
+        }
+        int start = buffer.position();
+        int read = mChannel.read(buffer, mHeaderSize + position);
+        if (read > 0 && mKeyStream != null) {
+            ByteBuffer data = buffer.duplicate();
+            data.limit(start + read);
+            data.position(start);
+            mKeyStream.crypt(position, data);
+        }
+        return read;
+    }
+
+    /**
+     * 将数据写入指定位置。连续的写入先合并到写缓冲，写满或不连续时再一次写入磁盘
+     */
+    public synchronized void write(long position, byte[] data, int offset, int length) throws IOException {
+        if (isCompleted()) return;
+        if (mKeyStream != null) {
+            //写缓冲和磁盘上都是密文
+            if (mCryptBuffer == null || mCryptBuffer.length < length) mCryptBuffer = new byte[length];
+            mKeyStream.crypt(position, data, offset, length, mCryptBuffer, 0);
+            data = mCryptBuffer;
+            offset = 0;
+        }
+        long start = position;
+        int total = length;
+        if (mWriteBuffer != null && position != mWriteBufferPosition + mWriteBuffer.position()) {
+            flushWriteBuffer();
+        }
+        if (sWriteBufferSize == 0) {
+            writeFully(ByteBuffer.wrap(data, offset, length), position);
+        } else {
+            while (length > 0) {
+                if (mWriteBuffer == null) {
+                    mWriteBuffer = BufferPool.obtain(sWriteBufferSize);
+                    mWriteBufferPosition = position;
+                    //缓冲结束位置对齐到块边界，后续的批次都是对齐的
+                    int misalignment = (int) (position % WRITE_ALIGNMENT);
+                    if (misalignment > 0 && mWriteBuffer.capacity() > WRITE_ALIGNMENT) {
+                        mWriteBuffer.limit(mWriteBuffer.capacity() - misalignment);
+                    }
+                }
+                int count = Math.min(length, mWriteBuffer.remaining());
+                mWriteBuffer.put(data, offset, count);
+                position += count;
+                offset += count;
+                length -= count;
+                if (!mWriteBuffer.hasRemaining()) flushWriteBuffer();
+            }
+        }
+        mRanges.add(start, start + total);
+        mUnsyncedBytes += total;
+        if (mLength > 0 && mRanges.getContiguousEnd(0) >= mLength) {
+            complete();
+        } else if (mUnsyncedBytes >= sSyncBytes) {
+            sync();
+            notifyCacheChanged();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        position += mHeaderSize;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        if (mWriteBuffer == null) return;
+        ByteBuffer buffer = mWriteBuffer;
+        mWriteBuffer = null;
+        try {
+            buffer.flip();
+            writeFully(buffer, mWriteBufferPosition);
+        } finally {
+            BufferPool.recycle(buffer);
+        }
+    }
+
+    private void discardWriteBuffer() {
+        if (mWriteBuffer == null) return;
+        BufferPool.recycle(mWriteBuffer);
+        mWriteBuffer = null;
+    }
+
+    /**
+     * 将写缓冲写入磁盘并持久化索引，索引只记录已经落盘的数据
+     */
+    private void sync() throws IOException {
+        flushWriteBuffer();
+        if (sFsync) mChannel.force(false);
+        writeIndex();
+    }
+
+    /**
+     * 下载完成，重命名为最终文件并删除索引
+     */
+    private void complete() throws IOException {
+        flushWriteBuffer();
+        mDataFile.setLength(mHeaderSize + mLength);
+        mDataFile.close();
+        if (!mFile.renameTo(mCompletedFile)) {
+            throw new IOException("Error renaming file " + mFile + " to " + mCompletedFile);
+        }
+        mFile = mCompletedFile;
+        mDataFile = new RandomAccessFile(mFile, "r");
+        mChannel = mDataFile.getChannel();
+        if (!mIndexFile.delete()) {
+            L.e("Unable to delete cache index " + mIndexFile);
+        }
+        notifyCacheChanged();
+        notifyValidatorsChanged();
+    }
+
+    private void notifyCacheChanged() {
+        OnCacheChangedListener listener = sOnCacheChangedListener;
+        if (listener == null) return;
+        long size = isCompleted() ? mLength : mRanges.getBytes();
+        listener.onCacheChanged(mCompletedFile.getName(), size, isCompleted());
+    }
+
+    private void notifyValidatorsChanged() {
+        OnCacheChangedListener listener = sOnCacheChangedListener;
+        if (listener == null) return;
+        listener.onValidatorsChanged(mCompletedFile.getName(), mETag, mLastModified);
+    }
+
+    /**
+     * 源站内容已变化，丢弃所有缓存的数据，包括已完整缓存的文件。
+     * 缓存文件是共享的，正在使用它的读取方之后读到的都是未缓存，会重新下载
+     */
+    public synchronized void invalidate() throws IOException {
+        discardWriteBuffer();
+        mRanges.clear();
+        mLength = -1;
+        mETag = null;
+        mLastModified = null;
+        if (isCompleted()) {
+            closeQuietly(mDataFile);
+            if (!mCompletedFile.delete()) throw new IOException("Unable to delete " + mCompletedFile);
+            mFile = new File(mCompletedFile.getParentFile(), mCompletedFile.getName() + TEMP_POSTFIX);
+            mDataFile = new RandomAccessFile(mFile, "rw");
+            mChannel = mDataFile.getChannel();
+        }
+        writeIndex();
+        mDataFile.setLength(0);
+        createHeader();
+        notifyCacheChanged();
+        notifyValidatorsChanged();
+    }
+
+    public synchronized boolean isCompleted() {
+        return mFile == mCompletedFile;
+    }
+
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 释放缓存文件，最后一个使用者释放时持久化索引并关闭文件
+     */
+    public void release() {
+        synchronized (sOpenFiles) {
+            if (--mRefCount > 0) return;
+            sOpenFiles.remove(mCompletedFile.getAbsolutePath());
+        }
+        synchronized (this) {
+            try {
+                if (!isCompleted() && mUnsyncedBytes > 0) {
+                    sync();
+                    notifyCacheChanged();
+                }
+            } catch (IOException e) {
+                L.e("Error closing cache file " + mFile + ": " + e.getMessage());
+            }
+            discardWriteBuffer();
+            closeQuietly(mDataFile);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.cache.evictor.EvictionPolicy;
+import com.dueeeke.videoplayer.cache.evictor.LruEvictionPolicy;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 缓存索引，记录每个缓存条目的大小、访问时间、访问次数和是否完整缓存。
+ * 创建时在后台线程从日志文件加载一次，调用方不等待加载：加载完成前的修改先记录下来，加载完成后按顺序执行，
+ * 查询得到的是空的索引，需要完整索引的后台任务先调用{@link #awaitLoaded()}。
+ * 修改先写入内存缓冲区，由后台线程合并后追加到日志，查询和清理都在内存中完成，不再扫描缓存目录。
+ * 日志中的无效记录过多时才重写为快照。
+ * 未固定的条目同时按清理策略和过期时间排序，清理时直接取最先清理的条目，不需要每次排序全部条目。
+ */
+public class CacheIndex {
+
+    static final String JOURNAL_FILE = "cache.journal";
+    private static final int JOURNAL_MAGIC_V1 = 0x444b4a31;//DKJ1
+    private static final int JOURNAL_MAGIC_V2 = 0x444b4a32;//DKJ2，增加有效期
+    private static final int JOURNAL_MAGIC_V3 = 0x444b4a33;//DKJ3，增加固定标记
+    private static final int JOURNAL_MAGIC = 0x444b4a34;//DKJ4，增加校验信息
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final HashMap<String, CacheEntry> mEntries = new HashMap<>();
+    private final long mDefaultTtl;
+    private final TreeSet<CacheEntry> mEvictionOrder;//未固定的条目，按清理策略排序
+    private final TreeSet<CacheEntry> mExpiryOrder;//未固定且有有效期的条目，按过期时间排序
+    private final HashMap<String, Long> mCacheLimits = new HashMap<>();//只缓存开头的字节数，不写入日志
+    private final HashMap<String, Long> mPendingTtls = new HashMap<>();//还没有缓存的条目单独设置的有效期
+    private final List<Runnable> mDeferred = new ArrayList<>();//加载完成前的修改
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();//加载和写日志
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingRecords = new DataOutputStream(mPendingBytes);//等待追加的记录
+    private byte[] mPendingSnapshot;//等待写入的快照，写入后再追加之后的记录
+    private boolean mFlushScheduled;
+    private DataOutputStream mJournal;//只在写日志的线程访问
+    private int mJournalRecords;
+    private long mTotalSize;
+    private long mPinnedSize;
+    private int mPinnedCount;
+    private boolean mLoaded;
+    private boolean mJournalStale;//日志是旧版本或最后一条记录不完整，不能继续追加
+
+    public CacheIndex(File directory) {
+        this(directory, new LruEvictionPolicy(), 0);
+    }
+
+    /**
+     * @param policy     清理策略，决定{@link #peekEviction(Set)}的顺序
+     * @param defaultTtl 全局有效期，条目没有单独设置时使用，0表示不过期
+     */
+    public CacheIndex(File directory, final EvictionPolicy policy, long defaultTtl) {
+        this.mDirectory = directory;
+        this.mJournalFile = new File(directory, JOURNAL_FILE);
+        this.mDefaultTtl = defaultTtl;
+        this.mEvictionOrder = new TreeSet<>(new Comparator<CacheEntry>() {
+            @Override
+            public int compare(CacheEntry e1, CacheEntry e2) {
+                int result = policy.compare(e1, e2);
+                return result != 0 ? result : e1.key.compareTo(e2.key);
+            }
+        });
+        this.mExpiryOrder = new TreeSet<>(new Comparator<CacheEntry>() {
+            @Override
+            public int compare(CacheEntry e1, CacheEntry e2) {
+                long t1 = getExpireTime(e1);
+                long t2 = getExpireTime(e2);
+                if (t1 != t2) return t1 < t2 ? -1 : 1;
+                return e1.key.compareTo(e2.key);
+            }
+        });
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * 在后台线程加载索引。读取文件时不持有锁，日志不存在时扫描一次缓存目录重建索引，只有需要时才重写日志
+     */
+    private void load() {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            L.e("Unable to create cache directory " + mDirectory);
+        }
+        HashMap<String, CacheEntry> entries = new HashMap<>();
+        boolean rewrite = false;
+        if (!readJournal(entries)) {
+            entries.clear();
+            scanDirectory(entries);
+            rewrite = true;
+        }
+        rewrite |= mJournalStale || needsCompact(entries.size());
+        if (!rewrite) openJournal();
+        synchronized (this) {
+            mEntries.putAll(entries);
+            for (CacheEntry entry : mEntries.values()) {
+                mTotalSize += entry.size;
+                if (entry.pinned) {
+                    mPinnedSize += entry.size;
+                    mPinnedCount++;
+                }
+                attach(entry);
+            }
+            mLoaded = true;
+            if (rewrite) snapshot();
+            for (Runnable operation : mDeferred) {
+                operation.run();
+            }
+            mDeferred.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * 等待后台加载完成，需要完整索引的后台任务先调用，不能在主线程调用
+     */
+    public synchronized void awaitLoaded() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 等待之前的修改写入日志
+     */
+    void awaitJournal() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * 加载完成前的修改先记录下来，加载完成后按顺序执行，只能在持有锁时调用
+     *
+     * @return 是否已记录，加载已完成时返回false，由调用方直接修改
+     */
+    private boolean defer(Runnable operation) {
+        if (mLoaded) return false;
+        mDeferred.add(operation);
+        return true;
+    }
+
+    private boolean readJournal(HashMap<String, CacheEntry> entries) {
+        if (!mJournalFile.exists()) return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            int magic = in.readInt();
+            if (magic != JOURNAL_MAGIC && magic != JOURNAL_MAGIC_V3
+                    && magic != JOURNAL_MAGIC_V2 && magic != JOURNAL_MAGIC_V1) return false;
+            mJournalStale = magic != JOURNAL_MAGIC;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (op == OP_PUT) {
+                    CacheEntry entry = new CacheEntry(key);
+                    entry.size = in.readLong();
+                    entry.lastAccessTime = in.readLong();
+                    entry.createTime = in.readLong();
+                    entry.accessCount = in.readInt();
+                    entry.completed = in.readBoolean();
+                    if (magic != JOURNAL_MAGIC_V1) entry.ttl = in.readLong();
+                    if (magic == JOURNAL_MAGIC || magic == JOURNAL_MAGIC_V3) entry.pinned = in.readBoolean();
+                    if (magic == JOURNAL_MAGIC) {
+                        entry.eTag = emptyToNull(in.readUTF());
+                        entry.lastModified = emptyToNull(in.readUTF());
+                        entry.validateTime = in.readLong();
+                    }
+                    entries.put(key, entry);
+                } else if (op == OP_REMOVE) {
+                    entries.remove(key);
+                } else {
+                    mJournalStale = true;
+                    break;
+                }
+                mJournalRecords++;
+            }
+            return true;
+        } catch (IOException e) {
+            //进程被杀时最后一条记录可能不完整，之前的记录仍然有效，但需要重写后才能继续追加
+            L.e("Cache journal truncated: " + e.getMessage());
+            mJournalStale = true;
+            return true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void scanDirectory(HashMap<String, CacheEntry> entries) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.isFile() || file.getName().startsWith(JOURNAL_FILE)) continue;
+            String key = CacheFile.getKey(file);
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                entry = new CacheEntry(key);
+                entries.put(key, entry);
+            }
+            entry.size += file.length();
+            entry.createTime = Math.max(entry.createTime, file.lastModified());
+            entry.lastAccessTime = entry.createTime;
+            if (key.equals(file.getName())) entry.completed = true;
+        }
+    }
+
+    /**
+     * 将当前索引序列化为快照，之前等待追加的记录已包含在快照中，由后台线程写入。只能在持有锁时调用
+     */
+    private void snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(JOURNAL_MAGIC);
+            for (CacheEntry entry : mEntries.values()) {
+                writePut(out, entry);
+            }
+        } catch (IOException e) {
+            //写入内存不会出错
+        }
+        mPendingSnapshot = bytes.toByteArray();
+        mPendingBytes.reset();
+        mJournalRecords = mEntries.size();
+        mJournalStale = false;
+        scheduleFlush();
+    }
+
+    /**
+     * 在写日志的线程执行，之前安排的写入还没执行时不重复安排，期间的记录合并写入。只能在持有锁时调用
+     */
+    private void scheduleFlush() {
+        if (mFlushScheduled) return;
+        mFlushScheduled = true;
+        mWriter.execute(mFlush);
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            byte[] snapshot;
+            byte[] records;
+            synchronized (CacheIndex.this) {
+                snapshot = mPendingSnapshot;
+                mPendingSnapshot = null;
+                records = mPendingBytes.toByteArray();
+                mPendingBytes.reset();
+                mFlushScheduled = false;
+            }
+            if (snapshot != null) writeSnapshot(snapshot);
+            if (records.length == 0 || mJournal == null) return;
+            try {
+                mJournal.write(records);
+                mJournal.flush();
+            } catch (IOException e) {
+                L.e("Error appending cache journal: " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * 先写临时文件再替换，之后继续追加
+     */
+    private void writeSnapshot(byte[] snapshot) {
+        closeQuietly(mJournal);
+        mJournal = null;
+        File tmp = new File(mDirectory, JOURNAL_FILE + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(snapshot);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mJournalFile)) throw new IOException("Unable to rename " + tmp);
+            openJournal();
+        } catch (IOException e) {
+            L.e("Error writing cache journal: " + e.getMessage());
+            closeQuietly(out);
+        }
+    }
+
+    private void openJournal() {
+        try {
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+        } catch (IOException e) {
+            L.e("Error opening cache journal: " + e.getMessage());
+        }
+    }
+
+    private static void writePut(DataOutputStream out, CacheEntry entry) throws IOException {
+        out.writeByte(OP_PUT);
+        out.writeUTF(entry.key);
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastAccessTime);
+        out.writeLong(entry.createTime);
+        out.writeInt(entry.accessCount);
+        out.writeBoolean(entry.completed);
+        out.writeLong(entry.ttl);
+        out.writeBoolean(entry.pinned);
+        out.writeUTF(entry.eTag == null ? "" : entry.eTag);
+        out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+        out.writeLong(entry.validateTime);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private void appendPut(CacheEntry entry) {
+        try {
+            writePut(mPendingRecords, entry);
+        } catch (IOException e) {
+            //写入内存不会出错
+        }
+        onRecordAppended();
+    }
+
+    private void appendRemove(String key) {
+        try {
+            mPendingRecords.writeByte(OP_REMOVE);
+            mPendingRecords.writeUTF(key);
+        } catch (IOException e) {
+            //写入内存不会出错
+        }
+        onRecordAppended();
+    }
+
+    private void onRecordAppended() {
+        mJournalRecords++;
+        if (needsCompact(mEntries.size())) {
+            snapshot();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private boolean needsCompact(int entryCount) {
+        return mJournalRecords > MIN_COMPACT_RECORDS && mJournalRecords > entryCount * 2;
+    }
+
+    private long getExpireTime(CacheEntry entry) {
+        long ttl = entry.ttl > 0 ? entry.ttl : mDefaultTtl;
+        return ttl > 0 ? entry.createTime + ttl : Long.MAX_VALUE;
+    }
+
+    /**
+     * 修改影响排序的字段前，先从有序集合中移除
+     */
+    private void detach(CacheEntry entry) {
+        if (entry.pinned) return;
+        mEvictionOrder.remove(entry);
+        mExpiryOrder.remove(entry);
+    }
+
+    private void attach(CacheEntry entry) {
+        if (entry.pinned) return;
+        mEvictionOrder.add(entry);
+        if (getExpireTime(entry) != Long.MAX_VALUE) mExpiryOrder.add(entry);
+    }
+
+    /**
+     * 新条目从创建时算作一次访问，之前单独设置的有效期在这时生效
+     */
+    private CacheEntry getOrCreate(String key) {
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new CacheEntry(key);
+            entry.createTime = System.currentTimeMillis();
+            entry.lastAccessTime = entry.createTime;
+            entry.accessCount = 1;
+            Long ttl = mPendingTtls.remove(key);
+            if (ttl != null) entry.ttl = ttl;
+            mEntries.put(key, entry);
+            attach(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 记录一次访问，还没有缓存的条目不记录，只锁定或准入的视频不占用条目数
+     */
+    public synchronized void touch(final String key) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                touch(key);
+            }
+        })) return;
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null) return;
+        detach(entry);
+        entry.lastAccessTime = System.currentTimeMillis();
+        entry.accessCount++;
+        attach(entry);
+        appendPut(entry);
+    }
+
+    /**
+     * 更新缓存大小和完成状态
+     *
+     * @param size 占用的磁盘空间
+     */
+    public synchronized void update(final String key, final long size, final boolean completed) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                update(key, size, completed);
+            }
+        })) return;
+        CacheEntry entry = getOrCreate(key);
+        detach(entry);
+        mTotalSize += size - entry.size;
+        if (entry.pinned) mPinnedSize += size - entry.size;
+        entry.size = size;
+        if (completed && !entry.completed) {
+            entry.createTime = System.currentTimeMillis();
+            entry.validateTime = entry.createTime;
+        }
+        entry.completed = completed;
+        attach(entry);
+        appendPut(entry);
+    }
+
+    /**
+     * 单独设置有效期，如广告。条目还没有缓存时在创建时生效
+     *
+     * @param ttl 0表示使用全局配置
+     */
+    public synchronized void setTtl(final String key, final long ttl) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                setTtl(key, ttl);
+            }
+        })) return;
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null) {
+            if (ttl > 0) {
+                mPendingTtls.put(key, ttl);
+            } else {
+                mPendingTtls.remove(key);
+            }
+            return;
+        }
+        if (entry.ttl == ttl) return;
+        detach(entry);
+        entry.ttl = ttl;
+        attach(entry);
+        appendPut(entry);
+    }
+
+    /**
+     * 固定或取消固定条目，固定的条目不会被清理，用于离线下载
+     */
+    public synchronized void setPinned(final String key, final boolean pinned) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                setPinned(key, pinned);
+            }
+        })) return;
+        CacheEntry entry = pinned ? getOrCreate(key) : mEntries.get(key);
+        if (entry == null || entry.pinned == pinned) return;
+        detach(entry);
+        entry.pinned = pinned;
+        attach(entry);
+        mPinnedSize += pinned ? entry.size : -entry.size;
+        mPinnedCount += pinned ? 1 : -1;
+        appendPut(entry);
+    }
+
+    /**
+     * 记录源站的校验信息，同时作为一次验证，刷新验证时间
+     */
+    public synchronized void setValidators(final String key, final String eTag, final String lastModified) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                setValidators(key, eTag, lastModified);
+            }
+        })) return;
+        CacheEntry entry = getOrCreate(key);
+        entry.eTag = eTag;
+        entry.lastModified = lastModified;
+        entry.validateTime = System.currentTimeMillis();
+        appendPut(entry);
+    }
+
+    /**
+     * 设置只缓存开头的字节数，由缓存准入决定，只保存在内存中，不需要等待加载，条目被清理时一起移除
+     *
+     * @param limit 0表示不限制
+     */
+    public synchronized void setCacheLimit(String key, long limit) {
+        if (limit > 0) {
+            mCacheLimits.put(key, limit);
+        } else {
+            mCacheLimits.remove(key);
+        }
+    }
+
+    public synchronized long getCacheLimit(String key) {
+        Long limit = mCacheLimits.get(key);
+        return limit == null ? 0 : limit;
+    }
+
+    public synchronized boolean isPinned(String key) {
+        CacheEntry entry = mEntries.get(key);
+        return entry != null && entry.pinned;
+    }
+
+    /**
+     * 固定条目占用的字节数
+     */
+    public synchronized long getPinnedSize() {
+        return mPinnedSize;
+    }
+
+    public synchronized int getPinnedCount() {
+        return mPinnedCount;
+    }
+
+    /**
+     * 最早过期的未固定条目的过期时间，没有时返回Long.MAX_VALUE
+     */
+    public synchronized long getEarliestExpiry() {
+        return mExpiryOrder.isEmpty() ? Long.MAX_VALUE : getExpireTime(mExpiryOrder.first());
+    }
+
+    /**
+     * 获取一个已过期的未固定条目的副本，没有时返回null
+     *
+     * @param skipped 跳过的key，如正在使用的缓存
+     */
+    public synchronized CacheEntry peekExpired(long now, Set<String> skipped) {
+        for (CacheEntry entry : mExpiryOrder) {
+            if (getExpireTime(entry) >= now) return null;
+            if (!skipped.contains(entry.key)) return entry.copy();
+        }
+        return null;
+    }
+
+    /**
+     * 按清理策略获取最先清理的未固定条目的副本，没有时返回null
+     *
+     * @param skipped 跳过的key，如正在使用的缓存
+     */
+    public synchronized CacheEntry peekEviction(Set<String> skipped) {
+        for (CacheEntry entry : mEvictionOrder) {
+            if (!skipped.contains(entry.key)) return entry.copy();
+        }
+        return null;
+    }
+
+    /**
+     * 移除条目，只缓存开头的设置立即移除，条目在加载完成后移除
+     */
+    public synchronized void remove(final String key) {
+        mCacheLimits.remove(key);
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                removeEntry(key);
+            }
+        })) return;
+        removeEntry(key);
+    }
+
+    private void removeEntry(String key) {
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null) return;
+        detach(entry);
+        mEntries.remove(key);
+        mTotalSize -= entry.size;
+        if (entry.pinned) {
+            mPinnedSize -= entry.size;
+            mPinnedCount--;
+        }
+        appendRemove(key);
+    }
+
+    public synchronized void clear() {
+        mCacheLimits.clear();
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                clearEntries();
+            }
+        })) return;
+        clearEntries();
+    }
+
+    private void clearEntries() {
+        mEntries.clear();
+        mEvictionOrder.clear();
+        mExpiryOrder.clear();
+        mPendingTtls.clear();
+        mTotalSize = 0;
+        mPinnedSize = 0;
+        mPinnedCount = 0;
+        snapshot();
+    }
+
+    /**
+     * 是否已完整缓存
+     */
+    public synchronized boolean isCompleted(String key) {
+        CacheEntry entry = mEntries.get(key);
+        return entry != null && entry.completed;
+    }
+
+    /**
+     * 获取单个条目的副本，不存在时返回null
+     */
+    public synchronized CacheEntry get(String key) {
+        CacheEntry entry = mEntries.get(key);
+        return entry == null ? null : entry.copy();
+    }
+
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    public synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * 获取缓存统计
+     */
+    public synchronized CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        for (CacheEntry entry : mEntries.values()) {
+            if (entry.completed) {
+                stats.completedCount++;
+                stats.completedSize += entry.size;
+            } else {
+                stats.partialCount++;
+                stats.partialSize += entry.size;
+            }
+        }
+        stats.count = mEntries.size();
+        stats.totalSize = mTotalSize;
+        return stats;
+    }
+
+    /**
+     * 获取所有条目的副本，会等待加载完成，不能在主线程调用
+     */
+    public synchronized List<CacheEntry> getEntries() {
+        awaitLoaded();
+        List<CacheEntry> entries = new ArrayList<>(mEntries.size());
+        for (Map.Entry<String, CacheEntry> e : mEntries.entrySet()) {
+            entries.add(e.getValue().copy());
+        }
+        return entries;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
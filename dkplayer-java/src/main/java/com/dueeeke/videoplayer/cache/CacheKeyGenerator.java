@@ -0,0 +1,167 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.text.TextUtils;
+
+import com.danikula.videocache.file.FileNameGenerator;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 缓存key生成器。先将url规范化，去掉签名、过期时间等每次请求都会变化的参数，
+ * 再计算md5作为缓存文件名，使同一个视频在不同会话中命中同一份缓存。
+ * <p>
+ * 同时实现{@link FileNameGenerator}，本地代理也使用同样的key。
+ */
+public class CacheKeyGenerator implements FileNameGenerator {
+
+    private static final int MAX_EXTENSION_LENGTH = 4;
+
+    /**
+     * 自定义url规范化
+     */
+    public interface UrlNormalizer {
+        /**
+         * @return 规范化后的url，相同视频的不同地址需返回相同的值
+         */
+        String normalize(String url);
+    }
+
+    private final Set<String> mStripParameters;
+    private final boolean mStripAllParameters;
+    private final Pattern mContentIdPattern;
+    private final UrlNormalizer mUrlNormalizer;
+
+    private CacheKeyGenerator(Builder builder) {
+        this.mStripParameters = builder.mStripParameters;
+        this.mStripAllParameters = builder.mStripAllParameters;
+        this.mContentIdPattern = builder.mContentIdPattern;
+        this.mUrlNormalizer = builder.mUrlNormalizer;
+    }
+
+    @Override
+    public String generate(String url) {
+        String extension = getExtension(url);
+        String md5 = computeMD5(normalize(url));
+        return TextUtils.isEmpty(extension) ? md5 : md5 + "." + extension;
+    }
+
+    /**
+     * 规范化url，优先级：内容id > 自定义规则 > 去除参数
+     */
+    public String normalize(String url) {
+        if (mContentIdPattern != null) {
+            Matcher matcher = mContentIdPattern.matcher(url);
+            if (matcher.find()) {
+                return "id:" + (matcher.groupCount() > 0 ? matcher.group(1) : matcher.group());
+            }
+        }
+        if (mUrlNormalizer != null) {
+            url = mUrlNormalizer.normalize(url);
+        }
+        return stripQueryParameters(url);
+    }
+
+    private String stripQueryParameters(String url) {
+        if (!mStripAllParameters && mStripParameters.isEmpty()) return url;
+        int fragmentIndex = url.indexOf('#');
+        if (fragmentIndex >= 0) url = url.substring(0, fragmentIndex);
+        int queryIndex = url.indexOf('?');
+        if (queryIndex < 0) return url;
+        String base = url.substring(0, queryIndex);
+        if (mStripAllParameters) return base;
+        StringBuilder sb = new StringBuilder(base);
+        char separator = '?';
+        for (String parameter : url.substring(queryIndex + 1).split("&")) {
+            if (parameter.isEmpty()) continue;
+            int equalIndex = parameter.indexOf('=');
+            String name = equalIndex < 0 ? parameter : parameter.substring(0, equalIndex);
+            if (mStripParameters.contains(name)) continue;
+            sb.append(separator).append(parameter);
+            separator = '&';
+        }
+        return sb.toString();
+    }
+
+    private static String getExtension(String url) {
+        int dotIndex = url.lastIndexOf('.');
+        int slashIndex = url.lastIndexOf('/');
+        int queryIndex = url.indexOf('?');
+        if (queryIndex >= 0 && queryIndex < dotIndex) {
+            //扩展名在参数之前
+            String path = url.substring(0, queryIndex);
+            dotIndex = path.lastIndexOf('.');
+            slashIndex = path.lastIndexOf('/');
+            url = path;
+        }
+        if (dotIndex == -1 || dotIndex < slashIndex || dotIndex + 2 + MAX_EXTENSION_LENGTH <= url.length()) {
+            return "";
+        }
+        return url.substring(dotIndex + 1);
+    }
+
+    private static String computeMD5(String string) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+            byte[] digestBytes = messageDigest.digest(string.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digestBytes) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Builder {
+
+        private Set<String> mStripParameters = new HashSet<>();
+        private boolean mStripAllParameters;
+        private Pattern mContentIdPattern;
+        private UrlNormalizer mUrlNormalizer;
+
+        /**
+         * 计算key时忽略这些参数，如签名、过期时间
+         */
+        public Builder stripQueryParameters(String... names) {
+            mStripParameters.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        /**
+         * 计算key时忽略所有参数
+         */
+        public Builder stripAllQueryParameters() {
+            mStripAllParameters = true;
+            return this;
+        }
+
+        /**
+         * 从url中提取内容id作为key，有分组时取第一个分组，否则取整个匹配，
+         * 例如 "video_id=([0-9a-f]+)"。匹配失败时使用其他规则
+         */
+        public Builder setContentIdPattern(String regex) {
+            mContentIdPattern = Pattern.compile(regex);
+            return this;
+        }
+
+        /**
+         * 设置自定义url规范化
+         */
+        public Builder setUrlNormalizer(UrlNormalizer urlNormalizer) {
+            mUrlNormalizer = urlNormalizer;
+            return this;
+        }
+
+        public CacheKeyGenerator build() {
+            return new CacheKeyGenerator(this);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.dueeeke.videoplayer.cache;
+
+/**
+ * 缓存命中统计，可以是一次播放的统计，也可以是所有播放的累计
+ */
+public class CacheMetrics {
+
+    public interface Listener {
+        /**
+         * 一次播放结束，在主线程回调
+         *
+         * @param url     视频地址
+         * @param session 本次播放的统计
+         * @param total   累计的统计
+         */
+        void onSessionFinished(String url, CacheMetrics session, CacheMetrics total);
+    }
+
+    public long memoryBytes;//从内存读取的字节数
+    public long diskBytes;//从磁盘读取的字节数
+    public long networkBytes;//从网络读取的字节数
+    public long networkWaitTime;//等待网络的时间，单位毫秒
+    public int sessions;//播放次数
+    public int hits;//完全命中缓存的播放次数
+    public int partialHits;//部分命中缓存的播放次数
+
+    /**
+     * 缓存命中率，按字节计算
+     */
+    public synchronized float getHitRatio() {
+        long total = memoryBytes + diskBytes + networkBytes;
+        return total == 0 ? 0 : (float) (memoryBytes + diskBytes) / total;
+    }
+
+    synchronized void addMemoryBytes(long bytes) {
+        memoryBytes += bytes;
+    }
+
+    synchronized void addDiskBytes(long bytes) {
+        diskBytes += bytes;
+    }
+
+    synchronized void addNetworkBytes(long bytes, long waitTime) {
+        networkBytes += bytes;
+        networkWaitTime += waitTime;
+    }
+
+    /**
+     * 结束一次播放，根据读取的来源记录是否命中
+     */
+    synchronized void finishSession() {
+        sessions = 1;
+        boolean cached = memoryBytes + diskBytes > 0;
+        hits = cached && networkBytes == 0 ? 1 : 0;
+        partialHits = cached && networkBytes > 0 ? 1 : 0;
+    }
+
+    /**
+     * 累加另一份统计
+     */
+    public synchronized void add(CacheMetrics other) {
+        CacheMetrics o = other.copy();
+        memoryBytes += o.memoryBytes;
+        diskBytes += o.diskBytes;
+        networkBytes += o.networkBytes;
+        networkWaitTime += o.networkWaitTime;
+        sessions += o.sessions;
+        hits += o.hits;
+        partialHits += o.partialHits;
+    }
+
+    public synchronized CacheMetrics copy() {
+        CacheMetrics metrics = new CacheMetrics();
+        metrics.memoryBytes = memoryBytes;
+        metrics.diskBytes = diskBytes;
+        metrics.networkBytes = networkBytes;
+        metrics.networkWaitTime = networkWaitTime;
+        metrics.sessions = sessions;
+        metrics.hits = hits;
+        metrics.partialHits = partialHits;
+        return metrics;
+    }
+
+    public synchronized void reset() {
+        memoryBytes = 0;
+        diskBytes = 0;
+        networkBytes = 0;
+        networkWaitTime = 0;
+        sessions = 0;
+        hits = 0;
+        partialHits = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CacheMetrics{memory=" + memoryBytes + ", disk=" + diskBytes + ", network=" + networkBytes
+                + ", networkWait=" + networkWaitTime + "ms, hitRatio=" + getHitRatio()
+                + ", sessions=" + sessions + ", hits=" + hits + ", partialHits=" + partialHits + "}";
+    }
+}
@@ -0,0 +1,55 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 缓存进度，包括已缓存的字节区间。是下载线程生成的不可变快照，由{@link CacheProgressDispatcher}在主线程合并后分发
+ */
+public class CacheProgress {
+
+    public interface Listener {
+        /**
+         * 缓存进度变化，在主线程回调，频率不超过设置的间隔
+         */
+        void onCacheProgress(CacheProgress progress);
+    }
+
+    public final String key;//缓存key
+    public final File file;//当前的缓存文件
+    public final long length;//视频总长度，未知时为-1
+    public final long available;//已缓存的字节数
+    public final boolean completed;//是否已完整缓存
+    public final List<long[]> ranges;//已缓存的区间，左闭右开，按起始位置排序
+
+    CacheProgress(String key, CacheFile cacheFile) {
+        this.key = key;
+        synchronized (cacheFile) {
+            this.file = cacheFile.getFile();
+            this.length = cacheFile.getLength();
+            this.available = cacheFile.available();
+            this.completed = cacheFile.isCompleted();
+            this.ranges = Collections.unmodifiableList(cacheFile.getCachedRanges());
+        }
+    }
+
+    /**
+     * 已缓存的百分比
+     */
+    public int getPercent() {
+        if (completed) return 100;
+        return length <= 0 ? 0 : (int) (available * 100 / length);
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置，position未缓存时返回position
+     */
+    public long getCachedEnd(long position) {
+        for (long[] range : ranges) {
+            if (range[0] > position) break;
+            if (range[1] > position) return range[1];
+        }
+        return position;
+    }
+}
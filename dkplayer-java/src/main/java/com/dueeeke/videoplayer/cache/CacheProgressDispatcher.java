@@ -0,0 +1,123 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 缓存进度分发。下载线程每写入一块数据记录一次快照，在主线程按固定间隔合并分发，
+ * 间隔内同一个视频的多次变化只回调一次，没有监听的视频不做任何处理。
+ * 监听{@link OriginFetcher}，边下边播、本地代理和预加载的下载都会分发。
+ * 按缓存key分发，同一个key的不同url共享一次下载，都能收到进度。
+ */
+public class CacheProgressDispatcher {
+
+    /**
+     * 默认间隔，约为一帧
+     */
+    public static final long DEFAULT_INTERVAL = 16;
+
+    private final long mInterval;
+    private final Map<String, CopyOnWriteArrayList<CacheProgress.Listener>> mListeners = new HashMap<>();
+    private final Map<String, CacheProgress> mPending = new LinkedHashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private boolean mScheduled;
+    private long mLastDispatchTime;
+
+    /**
+     * @param fetcher  监听其下载进度
+     * @param interval 最小分发间隔，单位毫秒
+     */
+    public CacheProgressDispatcher(OriginFetcher fetcher, long interval) {
+        this.mInterval = interval;
+        fetcher.addOnProgressListener(new OriginFetcher.OnProgressListener() {
+            @Override
+            public void onProgress(String url, CacheFile cacheFile) {
+                post(CacheFile.getKey(cacheFile.getFile()), cacheFile);
+            }
+        });
+    }
+
+    /**
+     * @param key 缓存key，即缓存文件名
+     */
+    public void register(String key, CacheProgress.Listener listener) {
+        synchronized (mListeners) {
+            CopyOnWriteArrayList<CacheProgress.Listener> listeners = mListeners.get(key);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+                mListeners.put(key, listeners);
+            }
+            listeners.addIfAbsent(listener);
+        }
+    }
+
+    public void unregister(String key, CacheProgress.Listener listener) {
+        synchronized (mListeners) {
+            List<CacheProgress.Listener> listeners = mListeners.get(key);
+            if (listeners == null) return;
+            listeners.remove(listener);
+            if (listeners.isEmpty()) mListeners.remove(key);
+        }
+    }
+
+    public void unregister(CacheProgress.Listener listener) {
+        synchronized (mListeners) {
+            Iterator<CopyOnWriteArrayList<CacheProgress.Listener>> iterator = mListeners.values().iterator();
+            while (iterator.hasNext()) {
+                List<CacheProgress.Listener> listeners = iterator.next();
+                listeners.remove(listener);
+                if (listeners.isEmpty()) iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 下载线程调用，在当前线程生成快照并只保留最新的一个，必要时安排一次分发。
+     * 读取缓存文件需要持有它的锁，可能要等待写入和同步，不能放到主线程
+     */
+    void post(String key, CacheFile cacheFile) {
+        synchronized (mListeners) {
+            if (!mListeners.containsKey(key)) return;
+        }
+        CacheProgress progress = new CacheProgress(key, cacheFile);
+        synchronized (mPending) {
+            mPending.put(key, progress);
+            if (mScheduled) return;
+            mScheduled = true;
+            long delay = Math.max(0, mLastDispatchTime + mInterval - SystemClock.uptimeMillis());
+            mMainHandler.postDelayed(mDispatch, delay);
+        }
+    }
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            List<Map.Entry<String, CacheProgress>> pending;
+            synchronized (mPending) {
+                pending = new ArrayList<>(mPending.entrySet());
+                mPending.clear();
+                mScheduled = false;
+                mLastDispatchTime = SystemClock.uptimeMillis();
+            }
+            for (Map.Entry<String, CacheProgress> entry : pending) {
+                List<CacheProgress.Listener> listeners;
+                synchronized (mListeners) {
+                    listeners = mListeners.get(entry.getKey());
+                }
+                if (listeners == null) continue;
+                for (CacheProgress.Listener listener : listeners) {
+                    listener.onCacheProgress(entry.getValue());
+                }
+            }
+        }
+    };
+}
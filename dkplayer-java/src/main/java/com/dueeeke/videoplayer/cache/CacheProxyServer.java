@@ -0,0 +1,536 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.danikula.videocache.file.FileNameGenerator;
+import com.dueeeke.videoplayer.cache.evictor.CacheEvictor;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 本地缓存代理，替代{@link com.danikula.videocache.HttpProxyCacheServer}。
+ * 所有播放器连接由固定数量的selector线程以非阻塞方式处理，每个连接只占用一个固定大小的缓冲，
+ * 源站下载由{@link OriginFetcher}的固定线程池完成，连接再多也不会创建新线程，
+ * 多个连接请求同一个视频时共用同一个下载。
+ * 数据直接读写{@link CacheFile}，和其他播放方式共用缓存文件、索引和清理策略。
+ */
+public class CacheProxyServer {
+
+    private static final String PROXY_HOST = "127.0.0.1";
+    private static final int SELECTOR_COUNT = 2;
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mCacheDirectory;
+    private final FileNameGenerator mKeyGenerator;
+    private final CacheEvictor mEvictor;
+    private final ServerSocketChannel mServerChannel;
+    private final int mPort;
+    private final SelectorThread[] mSelectors = new SelectorThread[SELECTOR_COUNT];
+    private final OriginFetcher mFetcher;
+    private CacheRevalidator mRevalidator;
+    private int mNextSelector;
+    private volatile boolean mShutdown;
+
+    /**
+     * @param fetcher 源站下载，和边下边播数据源、预加载共用
+     */
+    public CacheProxyServer(File cacheDirectory, FileNameGenerator keyGenerator, CacheEvictor evictor,
+                            OriginFetcher fetcher) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mKeyGenerator = keyGenerator;
+        this.mEvictor = evictor;
+        this.mFetcher = fetcher;
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(PROXY_HOST), 0));
+            mServerChannel.configureBlocking(false);
+            mPort = mServerChannel.socket().getLocalPort();
+            for (int i = 0; i < SELECTOR_COUNT; i++) {
+                mSelectors[i] = new SelectorThread(i);
+            }
+            //第一个selector同时负责接受连接
+            mSelectors[0].register(mServerChannel, SelectionKey.OP_ACCEPT, null);
+            for (SelectorThread selector : mSelectors) {
+                selector.start();
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw new IllegalStateException("Error starting cache proxy", e);
+        }
+    }
+
+    /**
+     * 设置重新验证，需要验证的完整缓存不返回本地文件地址，经过代理时先验证再发送
+     */
+    public void setRevalidator(CacheRevalidator revalidator) {
+        this.mRevalidator = revalidator;
+    }
+
+    /**
+     * 获取代理地址，已完整缓存时返回本地文件地址
+     */
+    public String getProxyUrl(String url) {
+        return getProxyUrl(url, true);
+    }
+
+    /**
+     * 获取代理地址
+     *
+     * @param allowCachedFileUri 已完整缓存时是否返回本地文件地址，缓存加密时总是经过代理
+     */
+    public String getProxyUrl(String url, boolean allowCachedFileUri) {
+        if (allowCachedFileUri && !CacheFile.isEncryptionEnabled() && isCached(url)
+                && (mRevalidator == null || !mRevalidator.needsRevalidation(getCacheFile(url).getName()))) {
+            File file = getCacheFile(url);
+            mEvictor.touch(file.getName());
+            return "file://" + file.getAbsolutePath();
+        }
+        if (mShutdown) return url;
+        try {
+            return "http://" + PROXY_HOST + ":" + mPort + "/" + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isCached(String url) {
+        return getCacheFile(url).exists();
+    }
+
+    private File getCacheFile(String url) {
+        return new File(mCacheDirectory, mKeyGenerator.generate(url));
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        for (SelectorThread selector : mSelectors) {
+            if (selector != null) selector.close();
+        }
+        try {
+            if (mServerChannel != null) mServerChannel.close();
+        } catch (IOException ignored) {
+        }
+        //下载是共用的，只移除本代理的监听，连接关闭时已各自移除下载监听
+    }
+
+    private synchronized SelectorThread nextSelector() {
+        SelectorThread selector = mSelectors[mNextSelector];
+        mNextSelector = (mNextSelector + 1) % SELECTOR_COUNT;
+        return selector;
+    }
+
+    private class SelectorThread extends Thread {
+
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+
+        SelectorThread(int index) throws IOException {
+            super("CacheProxySelector-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        /**
+         * 在selector线程中执行
+         */
+        void post(Runnable task) {
+            mPendingTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void register(final java.nio.channels.SelectableChannel channel, final int ops, final Connection connection) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = channel.register(mSelector, ops, connection);
+                        if (connection != null) connection.mKey = key;
+                    } catch (IOException e) {
+                        L.e("Error registering proxy channel: " + e.getMessage());
+                        if (connection != null) connection.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (!mShutdown) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    L.e("Proxy selector error: " + e.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.pump();
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = mServerChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    SelectorThread selector = nextSelector();
+                    selector.register(channel, SelectionKey.OP_READ, new Connection(channel, selector));
+                }
+            } catch (IOException e) {
+                L.e("Error accepting proxy connection: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            mShutdown = true;
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * 一个播放器连接，所有方法都在所属的selector线程中执行
+     */
+    private class Connection {
+
+        private final SocketChannel mChannel;
+        private final SelectorThread mSelector;
+        private SelectionKey mKey;
+        private ByteBuffer mRequestBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer mBuffer;//待发送的数据，始终处于读模式
+        private String mUrl;
+        private Map<String, String> mHeaders;
+        private CacheFile mCacheFile;
+        private File mCompletedFile;
+        private long mPosition;
+        private long mEnd = -1;//请求的结束位置(不含)，-1表示到文件末尾
+        private long mSuffixLength = -1;//请求最后的字节数，总长度已知后换算成开始位置，-1表示不是这种请求
+        private boolean mPartial;
+        private boolean mHeadersSent;
+        private OriginFetcher.FetchTask mFetchTask;
+        private volatile FetchListener mFetchListener;//当前下载的监听，每次请求下载时重新创建
+        private volatile IOException mFetchError;//当前下载的错误，重新请求下载时清除
+        private boolean mClosed;
+
+        Connection(SocketChannel channel, SelectorThread selector) {
+            this.mChannel = channel;
+            this.mSelector = selector;
+        }
+
+        void onReadable() {
+            try {
+                int read = mChannel.read(mRequestBuffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                String request = new String(mRequestBuffer.array(), 0, mRequestBuffer.position(), "ISO-8859-1");
+                if (!request.contains("\r\n\r\n")) {
+                    if (!mRequestBuffer.hasRemaining()) close();
+                    return;
+                }
+                mRequestBuffer = null;
+                mKey.interestOps(0);
+                start(request);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void start(String request) throws IOException {
+            String[] lines = request.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length < 2 || requestLine[1].length() < 2) {
+                close();
+                return;
+            }
+            mUrl = URLDecoder.decode(requestLine[1].substring(1), "UTF-8");
+            mHeaders = new LinkedHashMap<>();
+            String range = null;
+            for (int i = 1; i < lines.length; i++) {
+                int index = lines[i].indexOf(':');
+                if (index <= 0) continue;
+                String name = lines[i].substring(0, index).trim();
+                String value = lines[i].substring(index + 1).trim();
+                String lowerName = name.toLowerCase(Locale.US);
+                if (lowerName.equals("range")) {
+                    range = value;
+                } else if (!lowerName.equals("host") && !lowerName.equals("connection")
+                        && !lowerName.equals("accept-encoding")) {
+                    //其他请求头(User-Agent、Cookie等)转发给源站
+                    mHeaders.put(name, value);
+                }
+            }
+            parseRange(range);
+            mCompletedFile = getCacheFile(mUrl);
+            mCacheFile = CacheFile.acquire(mCompletedFile);
+            mEvictor.touch(mCompletedFile.getName());
+            mBuffer = BufferPool.obtain(BUFFER_SIZE);
+            mBuffer.flip();
+            String key = mCompletedFile.getName();
+            if (mRevalidator != null && mRevalidator.needsRevalidation(key)) {
+                //在后台验证，结束后再发送，内容变化时发送的是重新下载的数据
+                mRevalidator.revalidateAsync(mUrl, mHeaders, key, new Runnable() {
+                    @Override
+                    public void run() {
+                        mSelector.post(mPump);
+                    }
+                });
+                return;
+            }
+            pump();
+        }
+
+        /**
+         * 支持 bytes=start-、bytes=start-end 和 bytes=-length，多个区间或格式错误时忽略，按完整请求处理
+         */
+        private void parseRange(String range) {
+            if (range == null || !range.startsWith("bytes=")) return;
+            String[] parts = range.substring("bytes=".length()).split("-", -1);
+            if (parts.length != 2) return;
+            String start = parts[0].trim();
+            String end = parts[1].trim();
+            try {
+                if (start.isEmpty()) {
+                    mSuffixLength = Long.parseLong(end);
+                } else {
+                    mPosition = Long.parseLong(start);
+                    if (!end.isEmpty()) mEnd = Long.parseLong(end) + 1;
+                }
+                if (mPosition < 0 || mSuffixLength < -1 || (mEnd >= 0 && mEnd <= mPosition)) {
+                    throw new NumberFormatException("Invalid range " + range);
+                }
+                mPartial = true;
+            } catch (NumberFormatException e) {
+                mPosition = 0;
+                mEnd = -1;
+                mSuffixLength = -1;
+            }
+        }
+
+        /**
+         * 尽可能多地发送数据，数据不足时等待下载，socket写满时等待可写
+         */
+        void pump() {
+            if (mClosed) return;
+            try {
+                if (!mHeadersSent && !prepareHeaders()) return;
+                while (true) {
+                    if (mBuffer.hasRemaining()) {
+                        mChannel.write(mBuffer);
+                        if (mBuffer.hasRemaining()) {
+                            mKey.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    long end = getEnd();
+                    if (end >= 0 && mPosition >= end) {
+                        close();
+                        return;
+                    }
+                    if (!fillBuffer()) {
+                        if (mFetchError != null) {
+                            close();
+                        } else {
+                            //等待下载，期间不关注可写事件
+                            mKey.interestOps(0);
+                            requestFetch();
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private long getEnd() {
+            long length = mCacheFile.getLength();
+            if (mEnd >= 0) return length >= 0 ? Math.min(mEnd, length) : mEnd;
+            return length;
+        }
+
+        /**
+         * 总长度已知或开头的数据已缓存时发送响应头，请求最后的字节时需要等到总长度已知。
+         * 开始位置超出总长度时返回416
+         */
+        private boolean prepareHeaders() throws IOException {
+            long length = mCacheFile.getLength();
+            boolean waiting = mSuffixLength >= 0 ? length < 0
+                    : length < 0 && mCacheFile.getCachedEnd(mPosition) <= mPosition;
+            if (waiting) {
+                if (mFetchError != null) {
+                    writeResponse("HTTP/1.1 502 BAD GATEWAY\r\n");
+                } else {
+                    mKey.interestOps(0);
+                    requestFetch();
+                }
+                return false;
+            }
+            if (mSuffixLength >= 0) {
+                mPosition = Math.max(0, length - mSuffixLength);
+                mSuffixLength = -1;
+            }
+            if (mPartial && length >= 0 && mPosition >= length) {
+                writeResponse("HTTP/1.1 416 RANGE NOT SATISFIABLE\r\nContent-Range: bytes */" + length + "\r\n");
+                return false;
+            }
+            StringBuilder sb = new StringBuilder();
+            long end = getEnd();
+            sb.append(mPartial ? "HTTP/1.1 206 PARTIAL CONTENT\r\n" : "HTTP/1.1 200 OK\r\n");
+            sb.append("Accept-Ranges: bytes\r\n");
+            if (end >= 0) sb.append("Content-Length: ").append(end - mPosition).append("\r\n");
+            if (mPartial && length >= 0) {
+                sb.append("Content-Range: bytes ").append(mPosition).append('-').append(end - 1)
+                        .append('/').append(length).append("\r\n");
+            }
+            sb.append("Content-Type: ").append(getMime(mUrl)).append("\r\n");
+            sb.append("Connection: close\r\n\r\n");
+            mBuffer.clear();
+            mBuffer.put(sb.toString().getBytes("ISO-8859-1"));
+            mBuffer.flip();
+            mHeadersSent = true;
+            return true;
+        }
+
+        /**
+         * 发送没有内容的响应并关闭连接
+         *
+         * @param statusAndHeaders 状态行和额外的响应头，每行以\r\n结尾
+         */
+        private void writeResponse(String statusAndHeaders) throws IOException {
+            mHeadersSent = true;
+            mChannel.write(ByteBuffer.wrap((statusAndHeaders + "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes("ISO-8859-1")));
+            close();
+        }
+
+        /**
+         * 从缓存文件读取下一块数据
+         *
+         * @return 当前位置没有缓存时返回false
+         */
+        private boolean fillBuffer() throws IOException {
+            long cachedEnd = mCacheFile.getCachedEnd(mPosition);
+            if (cachedEnd <= mPosition) return false;
+            long end = getEnd();
+            if (end >= 0) cachedEnd = Math.min(cachedEnd, end);
+            mBuffer.clear();
+            if (cachedEnd - mPosition < mBuffer.capacity()) mBuffer.limit((int) (cachedEnd - mPosition));
+            int read = mCacheFile.read(mBuffer, mPosition);
+            mBuffer.flip();
+            if (read <= 0) return false;
+            mPosition += read;
+            return true;
+        }
+
+        /**
+         * 请求新的下载，之前下载的错误清除，之后只处理新下载的回调
+         */
+        private void requestFetch() {
+            if (mFetchTask != null && mFetchTask.covers(mPosition)) return;
+            //先请求新的下载再释放旧的，分段下载不会因为短暂没有读取方而停止
+            OriginFetcher.FetchTask previous = mFetchTask;
+            FetchListener previousListener = mFetchListener;
+            mFetchError = null;
+            mFetchListener = new FetchListener();
+            mFetchTask = mFetcher.request(mUrl, mHeaders, mCompletedFile, mPosition, mFetchListener);
+            if (previous != null) mFetcher.removeListener(previous, previousListener);
+        }
+
+        /**
+         * 下载线程回调，切换到selector线程继续发送。已被替换的下载的错误不影响当前下载
+         */
+        private class FetchListener implements OriginFetcher.Listener {
+
+            @Override
+            public void onDataAvailable() {
+                mSelector.post(mPump);
+            }
+
+            @Override
+            public void onFetchError(IOException e) {
+                if (mFetchListener != this) return;
+                mFetchError = e;
+                mSelector.post(mPump);
+            }
+        }
+
+        private final Runnable mPump = new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        };
+
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            if (mFetchTask != null) {
+                mFetcher.removeListener(mFetchTask, mFetchListener);
+                mFetchTask = null;
+            }
+            if (mKey != null) mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            if (mBuffer != null) {
+                BufferPool.recycle(mBuffer);
+                mBuffer = null;
+            }
+            if (mCacheFile != null) {
+                mCacheFile.release();
+                mEvictor.touch(mCompletedFile.getName());
+                mCacheFile = null;
+            }
+        }
+    }
+
+    private static String getMime(String url) {
+        int queryIndex = url.indexOf('?');
+        String path = (queryIndex < 0 ? url : url.substring(0, queryIndex)).toLowerCase(Locale.US);
+        if (path.endsWith(".mp4")) return "video/mp4";
+        if (path.endsWith(".ts")) return "video/mp2t";
+        if (path.endsWith(".m3u8")) return "application/vnd.apple.mpegurl";
+        if (path.endsWith(".flv")) return "video/x-flv";
+        if (path.endsWith(".webm")) return "video/webm";
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,155 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 完整缓存的重新验证。向源站发送带校验信息的HEAD请求，源站返回304时继续使用缓存并刷新验证时间，
+ * 内容变化时丢弃缓存，之后重新下载。网络错误或源站异常时仍使用缓存，不影响离线播放。
+ * 未下载完成的缓存在续传时已经通过If-Range验证，不需要重新验证。
+ */
+public class CacheRevalidator {
+
+    public static final int POLICY_NEVER = 0;//从不验证，缓存一直有效
+    public static final int POLICY_AFTER_INTERVAL = 1;//距上次下载或验证超过一定时间后，打开时验证
+    public static final int POLICY_ALWAYS = 2;//每次打开时验证
+    /**
+     * 每次打开都验证时，这段时间内的重复打开只验证一次，如拖动时播放器重新建立连接
+     */
+    private static final long ALWAYS_WINDOW = 30 * 1000;
+
+    private final File mCacheDirectory;
+    private final CacheIndex mIndex;
+    private final MemoryCache mMemoryCache;
+    private final int mPolicy;
+    private final long mInterval;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, List<Runnable>> mPending = new HashMap<>();
+
+    /**
+     * @param memoryCache 内存缓存，可以为null
+     */
+    public CacheRevalidator(File cacheDirectory, CacheIndex index, MemoryCache memoryCache, int policy, long interval) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mIndex = index;
+        this.mMemoryCache = memoryCache;
+        this.mPolicy = policy;
+        this.mInterval = interval;
+    }
+
+    /**
+     * 按策略判断完整缓存是否需要验证，只读取缓存索引。离线下载固定的条目不自动验证，避免离线内容被丢弃
+     */
+    public boolean needsRevalidation(String key) {
+        if (mPolicy == POLICY_NEVER) return false;
+        CacheEntry entry = mIndex.get(key);
+        if (entry == null || !entry.completed || entry.pinned) return false;
+        long age = System.currentTimeMillis() - entry.validateTime;
+        return age < 0 || age >= (mPolicy == POLICY_ALWAYS ? ALWAYS_WINDOW : mInterval);
+    }
+
+    /**
+     * 在当前线程验证，会访问网络
+     *
+     * @return 缓存是否仍然可用，内容变化时返回false
+     */
+    public boolean revalidate(String url, Map<String, String> headers, String key) {
+        CacheEntry entry = mIndex.get(key);
+        if (entry == null || !entry.completed) return true;
+        HttpUrlSource source = new HttpUrlSource(url, headers);
+        int code;
+        try {
+            code = source.validate(entry.eTag, entry.lastModified);
+        } catch (IOException e) {
+            L.e("Error revalidating " + url + ": " + e.getMessage());
+            return true;
+        }
+        boolean changed;
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            changed = false;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            changed = isChanged(entry, source);
+        } else {
+            L.e("Error revalidating " + url + ", response code: " + code);
+            return true;
+        }
+        if (!changed) {
+            //304可能不带Last-Modified，没有时保留原来的
+            String eTag = source.getETag() != null ? source.getETag() : entry.eTag;
+            String lastModified = source.getLastModified() != null ? source.getLastModified() : entry.lastModified;
+            mIndex.setValidators(key, eTag, lastModified);
+            return true;
+        }
+        L.d("content of " + url + " changed, discard cache");
+        invalidate(key);
+        return false;
+    }
+
+    /**
+     * 在后台验证，同一个key同时只验证一次
+     *
+     * @param callback 验证结束后在后台线程回调，可以为null
+     */
+    public void revalidateAsync(final String url, final Map<String, String> headers, final String key, Runnable callback) {
+        synchronized (mPending) {
+            List<Runnable> callbacks = mPending.get(key);
+            boolean running = callbacks != null;
+            if (!running) {
+                callbacks = new ArrayList<>();
+                mPending.put(key, callbacks);
+            }
+            if (callback != null) callbacks.add(callback);
+            if (running) return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                revalidate(url, headers, key);
+                List<Runnable> callbacks;
+                synchronized (mPending) {
+                    callbacks = mPending.remove(key);
+                }
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * 源站返回200时比较校验信息，都没有时比较长度，无法比较时认为没有变化
+     */
+    private static boolean isChanged(CacheEntry entry, HttpUrlSource source) {
+        if (entry.eTag != null && source.getETag() != null) return !entry.eTag.equals(source.getETag());
+        if (entry.lastModified != null && source.getLastModified() != null) {
+            return !entry.lastModified.equals(source.getLastModified());
+        }
+        return source.length() >= 0 && source.length() != entry.size;
+    }
+
+    /**
+     * 清空缓存文件，保留固定标记，之后播放时重新下载
+     */
+    private void invalidate(String key) {
+        CacheFile cacheFile = null;
+        try {
+            cacheFile = CacheFile.acquire(new File(mCacheDirectory, key));
+            cacheFile.invalidate();
+        } catch (IOException e) {
+            L.e("Error invalidating cache " + key + ": " + e.getMessage());
+        } finally {
+            if (cacheFile != null) cacheFile.release();
+        }
+        //缓存文件清空后再清除内存缓存，期间的读取不会把旧数据写回内存
+        if (mMemoryCache != null) mMemoryCache.remove(key);
+    }
+}
@@ -0,0 +1,21 @@
+package com.dueeeke.videoplayer.cache;
+
+/**
+ * 缓存统计，由{@link CacheIndex}在内存中计算，不访问磁盘
+ */
+public class CacheStats {
+
+    public long totalSize;//总字节数
+    public int count;//条目数
+    public long completedSize;//完整缓存的字节数
+    public int completedCount;//完整缓存的条目数
+    public long partialSize;//部分缓存的字节数
+    public int partialCount;//部分缓存的条目数
+
+    @Override
+    public String toString() {
+        return "CacheStats{totalSize=" + totalSize + ", count=" + count
+                + ", completed=" + completedCount + "/" + completedSize
+                + ", partial=" + partialCount + "/" + partialSize + "}";
+    }
+}
@@ -0,0 +1,76 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * 后台缓存操作的句柄，可以取消，进度和结果在主线程回调
+ */
+public class CacheTask {
+
+    public interface Listener {
+        /**
+         * @param done  已处理的条目数
+         * @param total 总条目数
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * @param success 是否全部成功，被取消时为false
+         */
+        void onComplete(boolean success);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Listener mListener;
+    private volatile boolean mCancelled;
+    private volatile boolean mDone;
+    private int mLastPercent = -1;
+
+    public CacheTask(Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * 取消操作，已处理的条目不会恢复
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * 通知进度，百分比变化时才回调，避免频繁切换线程
+     */
+    void publishProgress(final int done, final int total) {
+        if (mListener == null) return;
+        int percent = total == 0 ? 100 : (int) (done * 100L / total);
+        if (percent == mLastPercent) return;
+        mLastPercent = percent;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(done, total);
+            }
+        });
+    }
+
+    void complete(final boolean success) {
+        mDone = true;
+        if (mListener == null) return;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onComplete(success);
+            }
+        });
+    }
+}
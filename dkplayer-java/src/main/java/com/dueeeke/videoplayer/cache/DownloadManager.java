@@ -0,0 +1,449 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.danikula.videocache.file.FileNameGenerator;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 离线下载管理。任务列表保存在缓存目录中，应用重启后继续下载，已下载的部分不会重新下载；
+ * 同时下载的任务数有上限；可以要求只在不计流量的网络或充电时下载，条件不满足时等待。
+ * 下载的内容就是普通的缓存条目，会被固定，不会被清理，播放时直接命中缓存。
+ * 下载和播放、预加载共用{@link OriginFetcher}，同一个视频不会重复下载。
+ */
+public class DownloadManager {
+
+    public static final int CONSTRAINT_UNMETERED = 1;//只在不计流量的网络下载，如WiFi
+    public static final int CONSTRAINT_CHARGING = 1 << 1;//只在充电时下载
+
+    static final String LIST_FILE = "download.list";
+    private static final int LIST_MAGIC = 0x444b4431;//DKD1
+
+    public interface Listener {
+        /**
+         * 下载进度变化，在主线程回调，百分比变化时才回调
+         */
+        void onProgress(DownloadTask task);
+
+        /**
+         * 任务状态变化，在主线程回调
+         */
+        void onStateChanged(DownloadTask task);
+    }
+
+    private final Context mContext;
+    private final File mCacheDirectory;
+    private final File mListFile;
+    private final FileNameGenerator mKeyGenerator;
+    private final CacheIndex mIndex;
+    private final OriginFetcher mFetcher;
+    private final int mMaxParallel;
+    private final LinkedHashMap<String, DownloadTask> mTasks = new LinkedHashMap<>();
+    private final ExecutorService mExecutor;
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mRunning;
+
+    /**
+     * @param maxParallel 同时下载的任务数，最多{@link OriginFetcher#MAX_PARALLEL_DOWNLOADS}个
+     */
+    public DownloadManager(Context context, File cacheDirectory, FileNameGenerator keyGenerator,
+                           CacheIndex index, OriginFetcher fetcher, int maxParallel) {
+        this.mContext = context.getApplicationContext();
+        this.mCacheDirectory = cacheDirectory;
+        this.mListFile = new File(cacheDirectory, LIST_FILE);
+        this.mKeyGenerator = keyGenerator;
+        this.mIndex = index;
+        this.mFetcher = fetcher;
+        this.mMaxParallel = Math.max(1, Math.min(maxParallel, OriginFetcher.MAX_PARALLEL_DOWNLOADS));
+        this.mExecutor = Executors.newFixedThreadPool(mMaxParallel);
+        load();
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        mContext.registerReceiver(mConditionReceiver, filter);
+        schedule();
+    }
+
+    /**
+     * 网络或充电状态变化时重新调度
+     */
+    private final BroadcastReceiver mConditionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            schedule();
+        }
+    };
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public DownloadTask add(String url) {
+        return add(url, null, 0);
+    }
+
+    /**
+     * 添加下载，已存在时返回已有的任务，已暂停或失败的任务会重新开始。不支持HLS
+     *
+     * @param headers     请求头，会保存在任务列表中，可以为null
+     * @param constraints 下载条件，如 {@link #CONSTRAINT_UNMETERED} | {@link #CONSTRAINT_CHARGING}
+     */
+    public DownloadTask add(String url, Map<String, String> headers, int constraints) {
+        if (HlsCache.isHls(url)) throw new IllegalArgumentException("HLS download is not supported: " + url);
+        String key = mKeyGenerator.generate(url);
+        DownloadTask task;
+        synchronized (this) {
+            task = mTasks.get(key);
+            if (task == null) {
+                task = new DownloadTask(url, headers, key, constraints, DownloadTask.STATE_QUEUED);
+                mTasks.put(key, task);
+                //下载过程中就固定，已下载的部分不会被清理
+                mIndex.setPinned(key, true);
+                notifyStateChanged(task);
+            } else if (task.mState == DownloadTask.STATE_PAUSED || task.mState == DownloadTask.STATE_FAILED) {
+                setState(task, DownloadTask.STATE_QUEUED);
+            }
+        }
+        save();
+        schedule();
+        return task;
+    }
+
+    /**
+     * 暂停下载，已下载的部分保留
+     */
+    public void pause(String url) {
+        synchronized (this) {
+            DownloadTask task = mTasks.get(mKeyGenerator.generate(url));
+            if (task == null || task.mState == DownloadTask.STATE_COMPLETED
+                    || task.mState == DownloadTask.STATE_PAUSED) return;
+            boolean running = task.mState == DownloadTask.STATE_DOWNLOADING;
+            setState(task, DownloadTask.STATE_PAUSED);
+            if (running) task.mWaiter.cancel();
+        }
+        save();
+        schedule();
+    }
+
+    /**
+     * 继续已暂停或失败的下载
+     */
+    public void resume(String url) {
+        synchronized (this) {
+            DownloadTask task = mTasks.get(mKeyGenerator.generate(url));
+            if (task == null || (task.mState != DownloadTask.STATE_PAUSED
+                    && task.mState != DownloadTask.STATE_FAILED)) return;
+            setState(task, DownloadTask.STATE_QUEUED);
+        }
+        save();
+        schedule();
+    }
+
+    /**
+     * 删除下载任务，缓存不再固定
+     *
+     * @param deleteCache 是否同时删除已下载的缓存，否则作为普通缓存保留
+     */
+    public void remove(String url, boolean deleteCache) {
+        final DownloadTask task;
+        synchronized (this) {
+            task = mTasks.remove(mKeyGenerator.generate(url));
+            if (task == null) return;
+            mIndex.setPinned(task.mKey, false);
+            if (task.mState == DownloadTask.STATE_DOWNLOADING) {
+                //下载线程结束时删除
+                task.mDeleteOnFinish = deleteCache;
+                task.mWaiter.cancel();
+                deleteCache = false;
+            }
+        }
+        if (deleteCache) {
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteCache(task);
+                }
+            });
+        }
+        save();
+        schedule();
+    }
+
+    public synchronized DownloadTask getTask(String url) {
+        return mTasks.get(mKeyGenerator.generate(url));
+    }
+
+    public synchronized List<DownloadTask> getTasks() {
+        return new ArrayList<>(mTasks.values());
+    }
+
+    /**
+     * 按条件和并发上限启动、暂停任务
+     */
+    private void schedule() {
+        boolean connected = false;
+        boolean unmetered = false;
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm == null ? null : cm.getActiveNetworkInfo();
+        if (info != null && info.isConnected()) {
+            connected = true;
+            unmetered = !cm.isActiveNetworkMetered();
+        }
+        boolean charging = isCharging();
+        synchronized (this) {
+            for (DownloadTask task : mTasks.values()) {
+                int constraints = task.mConstraints;
+                boolean satisfied = connected
+                        && ((constraints & CONSTRAINT_UNMETERED) == 0 || unmetered)
+                        && ((constraints & CONSTRAINT_CHARGING) == 0 || charging);
+                switch (task.mState) {
+                    case DownloadTask.STATE_DOWNLOADING:
+                        if (!satisfied) {
+                            setState(task, DownloadTask.STATE_WAITING);
+                            task.mWaiter.cancel();
+                        }
+                        break;
+                    case DownloadTask.STATE_QUEUED:
+                    case DownloadTask.STATE_WAITING:
+                        if (!satisfied) {
+                            if (task.mState != DownloadTask.STATE_WAITING) {
+                                setState(task, DownloadTask.STATE_WAITING);
+                            }
+                        } else if (mRunning < mMaxParallel) {
+                            start(task);
+                        } else if (task.mState != DownloadTask.STATE_QUEUED) {
+                            setState(task, DownloadTask.STATE_QUEUED);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    private boolean isCharging() {
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void start(final DownloadTask task) {
+        final OriginFetcher.Waiter waiter = new OriginFetcher.Waiter();
+        task.mWaiter = waiter;
+        mRunning++;
+        setState(task, DownloadTask.STATE_DOWNLOADING);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                download(task, waiter);
+            }
+        });
+    }
+
+    /**
+     * 在下载线程中等待共用的下载填满所有空缺
+     */
+    private void download(DownloadTask task, OriginFetcher.Waiter waiter) {
+        File completedFile = new File(mCacheDirectory, task.mKey);
+        CacheFile cacheFile = null;
+        OriginFetcher.FetchTask fetchTask = null;
+        int result = DownloadTask.STATE_FAILED;
+        try {
+            cacheFile = CacheFile.acquire(completedFile);
+            publishProgress(task, cacheFile);
+            while (!cacheFile.isCompleted()) {
+                long length = cacheFile.getLength();
+                long position;
+                if (length < 0) {
+                    //长度未知时从头顺序下载，下载结束时得到长度
+                    position = cacheFile.getCachedEnd(0);
+                } else {
+                    List<long[]> gaps = cacheFile.getGaps(0, length);
+                    if (gaps.isEmpty()) break;
+                    position = gaps.get(0)[0];
+                }
+                if (fetchTask == null || !fetchTask.covers(position)) {
+                    OriginFetcher.FetchTask previous = fetchTask;
+                    fetchTask = mFetcher.requestDownload(task.mUrl, task.mHeaders, completedFile, position, waiter);
+                    if (previous != null) mFetcher.removeListener(previous, waiter);
+                }
+                waiter.await();
+                publishProgress(task, cacheFile);
+            }
+            if (cacheFile.isCompleted()) result = DownloadTask.STATE_COMPLETED;
+        } catch (IOException e) {
+            if (task.mState == DownloadTask.STATE_DOWNLOADING) {
+                L.e("download " + task.mUrl + " failed: " + e.getMessage());
+            }
+            //断网时等待网络恢复后继续
+            ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm == null ? null : cm.getActiveNetworkInfo();
+            if (info == null || !info.isConnected()) result = DownloadTask.STATE_WAITING;
+        } finally {
+            if (fetchTask != null) mFetcher.removeListener(fetchTask, waiter);
+            if (cacheFile != null) {
+                publishProgress(task, cacheFile);
+                cacheFile.release();
+            }
+        }
+        synchronized (this) {
+            mRunning--;
+            //暂停、删除或条件不满足时状态已经改变
+            if (task.mWaiter == waiter && task.mState == DownloadTask.STATE_DOWNLOADING) {
+                setState(task, result);
+            }
+        }
+        if (task.mDeleteOnFinish) deleteCache(task);
+        save();
+        schedule();
+    }
+
+    private void deleteCache(DownloadTask task) {
+        if (CacheFile.delete(mCacheDirectory, task.mKey)) mIndex.remove(task.mKey);
+    }
+
+    private void publishProgress(final DownloadTask task, CacheFile cacheFile) {
+        task.mTotalBytes = cacheFile.getLength();
+        task.mDownloadedBytes = cacheFile.isCompleted() ? cacheFile.getLength() : cacheFile.available();
+        int percent = task.getPercent();
+        if (percent == task.mLastPercent) return;
+        task.mLastPercent = percent;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onProgress(task);
+                }
+            }
+        });
+    }
+
+    private void setState(DownloadTask task, int state) {
+        task.mState = state;
+        notifyStateChanged(task);
+    }
+
+    private void notifyStateChanged(final DownloadTask task) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onStateChanged(task);
+                }
+            }
+        });
+    }
+
+    /**
+     * 加载任务列表，下载中和等待中的任务重新排队
+     */
+    private void load() {
+        if (!mListFile.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mListFile)));
+            if (in.readInt() != LIST_MAGIC) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String url = in.readUTF();
+                int constraints = in.readInt();
+                int state = in.readInt();
+                int headerCount = in.readInt();
+                Map<String, String> headers = headerCount == 0 ? null : new HashMap<String, String>();
+                for (int j = 0; j < headerCount; j++) {
+                    headers.put(in.readUTF(), in.readUTF());
+                }
+                String key = mKeyGenerator.generate(url);
+                if (state == DownloadTask.STATE_COMPLETED && !new File(mCacheDirectory, key).exists()) {
+                    //缓存已被删除
+                    state = DownloadTask.STATE_FAILED;
+                } else if (state != DownloadTask.STATE_COMPLETED && state != DownloadTask.STATE_PAUSED
+                        && state != DownloadTask.STATE_FAILED) {
+                    state = DownloadTask.STATE_QUEUED;
+                }
+                mTasks.put(key, new DownloadTask(url, headers, key, constraints, state));
+            }
+        } catch (IOException e) {
+            L.e("Error reading download list: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 在后台保存任务列表，先写临时文件再替换
+     */
+    private void save() {
+        final List<DownloadTask> tasks = getTasks();
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File tmp = new File(mListFile.getPath() + ".tmp");
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                    out.writeInt(LIST_MAGIC);
+                    out.writeInt(tasks.size());
+                    for (DownloadTask task : tasks) {
+                        out.writeUTF(task.mUrl);
+                        out.writeInt(task.mConstraints);
+                        out.writeInt(task.mState);
+                        Map<String, String> headers = task.mHeaders;
+                        out.writeInt(headers == null ? 0 : headers.size());
+                        if (headers != null) {
+                            for (Map.Entry<String, String> header : headers.entrySet()) {
+                                out.writeUTF(header.getKey());
+                                out.writeUTF(header.getValue());
+                            }
+                        }
+                    }
+                    out.close();
+                    out = null;
+                    if (!tmp.renameTo(mListFile)) throw new IOException("Unable to rename " + tmp);
+                } catch (IOException e) {
+                    L.e("Error writing download list: " + e.getMessage());
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
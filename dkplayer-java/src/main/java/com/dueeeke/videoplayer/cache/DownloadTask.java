@@ -0,0 +1,77 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.util.Map;
+
+/**
+ * 离线下载任务，由{@link DownloadManager}创建和调度
+ */
+public class DownloadTask {
+
+    public static final int STATE_QUEUED = 0;//等待下载
+    public static final int STATE_WAITING = 1;//等待满足网络、充电等条件
+    public static final int STATE_DOWNLOADING = 2;//下载中
+    public static final int STATE_PAUSED = 3;//已暂停
+    public static final int STATE_COMPLETED = 4;//已完成
+    public static final int STATE_FAILED = 5;//失败
+
+    final String mUrl;
+    final Map<String, String> mHeaders;
+    final String mKey;
+    final int mConstraints;
+    volatile int mState;
+    volatile long mDownloadedBytes;
+    volatile long mTotalBytes = -1;
+    int mLastPercent = -1;
+    OriginFetcher.Waiter mWaiter;
+    volatile boolean mDeleteOnFinish;
+
+    DownloadTask(String url, Map<String, String> headers, String key, int constraints, int state) {
+        this.mUrl = url;
+        this.mHeaders = headers;
+        this.mKey = key;
+        this.mConstraints = constraints;
+        this.mState = state;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 缓存key
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * 下载条件，见{@link DownloadManager#CONSTRAINT_UNMETERED}等
+     */
+    public int getConstraints() {
+        return mConstraints;
+    }
+
+    /**
+     * 已下载的字节数
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /**
+     * 总字节数，未知时返回-1
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public int getPercent() {
+        if (mState == STATE_COMPLETED) return 100;
+        long total = mTotalBytes;
+        return total <= 0 ? 0 : (int) (mDownloadedBytes * 100 / total);
+    }
+}
@@ -0,0 +1,349 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.danikula.videocache.file.FileNameGenerator;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HLS缓存。下载m3u8并改写其中的地址：已缓存的分片指向本地文件，未缓存的分片经过本地代理，
+ * 播放时每个分片作为独立的缓存条目保存，和普通视频共用清理策略。
+ * 改写后的m3u8保存在本地，IjkPlayer和ExoPlayer都可以直接播放。
+ * 直播流(没有#EXT-X-ENDLIST)不缓存。
+ */
+public class HlsCache {
+
+    static final String PLAYLIST_DIRECTORY = "hls";
+    private static final int MAX_PLAYLIST_SIZE = 4 * 1024 * 1024;
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+    /**
+     * 最多保留这么多个准备后还未播放的分片列表，正在播放的不计入
+     */
+    private static final int MAX_UNLOCKED_SEGMENTS = 8;
+
+    public interface Callback {
+        /**
+         * @param path 可直接播放的地址，直播流或出错时为原地址
+         */
+        void onPrepared(String path);
+    }
+
+    /**
+     * 播放列表引用的分片和正在使用它的播放器数
+     */
+    private static class Segments {
+        final List<String> keys;
+        int locks;
+
+        Segments(List<String> keys) {
+            this.keys = keys;
+        }
+    }
+
+    private final File mCacheDirectory;
+    private final FileNameGenerator mKeyGenerator;
+    private final CacheProxyServer mProxy;
+    private final Preloader mPreloader;
+    private final LinkedHashMap<String, Segments> mSegments = new LinkedHashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public HlsCache(File cacheDirectory, FileNameGenerator keyGenerator, CacheProxyServer proxy, Preloader preloader) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mKeyGenerator = keyGenerator;
+        this.mProxy = proxy;
+        this.mPreloader = preloader;
+    }
+
+    public static boolean isHls(String url) {
+        int queryIndex = url.indexOf('?');
+        String path = queryIndex < 0 ? url : url.substring(0, queryIndex);
+        return path.endsWith(".m3u8");
+    }
+
+    /**
+     * 在后台准备本地播放列表，结果在主线程回调
+     */
+    public void prepare(final String url, final Map<String, String> headers, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String path = url;
+                List<String> segmentKeys = new ArrayList<>();
+                try {
+                    File playlist = rewritePlaylist(url, headers, true, segmentKeys);
+                    if (playlist != null) path = "file://" + playlist.getAbsolutePath();
+                } catch (IOException e) {
+                    L.e("Error preparing hls cache for " + url + ": " + e.getMessage());
+                }
+                putSegments(url, segmentKeys);
+                final String result = path;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPrepared(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 保存准备时播放列表引用的分片key。正在播放时保留原来的列表，解锁的分片和锁定的一致
+     */
+    private void putSegments(String url, List<String> keys) {
+        synchronized (mSegments) {
+            Segments segments = mSegments.get(url);
+            if (segments != null && segments.locks > 0) return;
+            mSegments.remove(url);
+            mSegments.put(url, new Segments(keys));
+            //只播放过一次或准备后没有播放的列表按准备的先后淘汰
+            int unlocked = 0;
+            for (Segments s : mSegments.values()) {
+                if (s.locks == 0) unlocked++;
+            }
+            Iterator<Segments> iterator = mSegments.values().iterator();
+            while (unlocked > MAX_UNLOCKED_SEGMENTS && iterator.hasNext()) {
+                if (iterator.next().locks == 0) {
+                    iterator.remove();
+                    unlocked--;
+                }
+            }
+        }
+    }
+
+    /**
+     * 开始播放，获取最近一次准备时播放列表引用的分片key，播放期间需要锁定，避免被清理
+     */
+    public List<String> lockSegmentKeys(String url) {
+        synchronized (mSegments) {
+            Segments segments = mSegments.get(url);
+            if (segments == null) return new ArrayList<>();
+            segments.locks++;
+            return new ArrayList<>(segments.keys);
+        }
+    }
+
+    /**
+     * 停止播放，获取锁定时的分片key用于解锁，没有播放器使用时移除
+     */
+    public List<String> unlockSegmentKeys(String url) {
+        synchronized (mSegments) {
+            Segments segments = mSegments.get(url);
+            if (segments == null || segments.locks == 0) return new ArrayList<>();
+            if (--segments.locks == 0) mSegments.remove(url);
+            return new ArrayList<>(segments.keys);
+        }
+    }
+
+    /**
+     * 在后台下载播放列表，并预加载前count个分片，多码率时只预加载第一个码率
+     */
+    public void preload(final String url, final int count) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String segmentUrl : getFirstSegments(url, count)) {
+                        File cacheFile = new File(mCacheDirectory, mKeyGenerator.generate(segmentUrl));
+                        if (!cacheFile.exists()) mPreloader.preload(segmentUrl, cacheFile, Long.MAX_VALUE);
+                    }
+                } catch (IOException e) {
+                    L.e("Error preloading hls " + url + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private List<String> getFirstSegments(String url, int count) throws IOException {
+        List<String> segments = new ArrayList<>();
+        String text = loadPlaylist(url, null);
+        String mediaUrl = url;
+        if (isMasterPlaylist(text)) {
+            mediaUrl = getFirstVariant(url, text);
+            if (mediaUrl == null) return segments;
+            text = loadPlaylist(mediaUrl, null);
+        }
+        if (!text.contains("#EXT-X-ENDLIST")) return segments;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            segments.add(resolve(mediaUrl, line));
+            if (segments.size() >= count) break;
+        }
+        return segments;
+    }
+
+    /**
+     * 改写播放列表
+     *
+     * @param allowMaster 是否允许多码率列表，子列表不再嵌套
+     * @param segmentKeys 收集引用的分片key
+     * @return 本地播放列表，直播流返回null
+     */
+    private File rewritePlaylist(String url, Map<String, String> headers, boolean allowMaster,
+                                 List<String> segmentKeys) throws IOException {
+        String text = loadPlaylist(url, headers);
+        boolean master = isMasterPlaylist(text);
+        if (!master && !text.contains("#EXT-X-ENDLIST")) return null;
+        if (master && !allowMaster) return null;
+        StringBuilder sb = new StringBuilder();
+        boolean nextIsVariant = false;
+        for (String rawLine : text.split("\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("#")) {
+                if (line.startsWith("#EXT-X-STREAM-INF")) nextIsVariant = true;
+                sb.append(rewriteUriAttribute(url, headers, line, master, segmentKeys)).append('\n');
+                continue;
+            }
+            String absoluteUrl = resolve(url, line);
+            if (nextIsVariant) {
+                sb.append(rewriteVariant(absoluteUrl, headers, segmentKeys)).append('\n');
+                nextIsVariant = false;
+            } else {
+                sb.append(rewriteSegment(absoluteUrl, segmentKeys)).append('\n');
+            }
+        }
+        File directory = new File(mCacheDirectory, PLAYLIST_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        File playlist = new File(directory, mKeyGenerator.generate(url) + ".m3u8");
+        OutputStream out = new FileOutputStream(playlist);
+        try {
+            out.write(sb.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return playlist;
+    }
+
+    private String rewriteUriAttribute(String url, Map<String, String> headers, String line, boolean master,
+                                       List<String> segmentKeys) throws IOException {
+        Matcher matcher = URI_ATTRIBUTE.matcher(line);
+        if (!matcher.find()) return line;
+        String absoluteUrl = resolve(url, matcher.group(1));
+        //多码率列表中的URI属性是子列表(音轨、字幕等)，媒体列表中的是密钥或初始化分片
+        String rewritten = master ? rewriteVariant(absoluteUrl, headers, segmentKeys)
+                : rewriteSegment(absoluteUrl, segmentKeys);
+        return line.substring(0, matcher.start(1)) + rewritten + line.substring(matcher.end(1));
+    }
+
+    private String rewriteVariant(String url, Map<String, String> headers, List<String> segmentKeys) throws IOException {
+        File playlist = rewritePlaylist(url, headers, false, segmentKeys);
+        return playlist == null ? url : "file://" + playlist.getAbsolutePath();
+    }
+
+    /**
+     * 已缓存的分片直接指向本地文件，否则经过本地代理边下边存。缓存加密时都经过本地代理解密
+     */
+    private String rewriteSegment(String url, List<String> segmentKeys) {
+        String key = mKeyGenerator.generate(url);
+        segmentKeys.add(key);
+        File cacheFile = new File(mCacheDirectory, key);
+        if (cacheFile.exists() && !CacheFile.isEncryptionEnabled()) return "file://" + cacheFile.getAbsolutePath();
+        //本地代理和预加载共用下载，正在预加载的分片会被接着使用
+        return mProxy.getProxyUrl(url);
+    }
+
+    /**
+     * 下载播放列表并保存到缓存，网络不可用时使用缓存的版本
+     */
+    private String loadPlaylist(String url, Map<String, String> headers) throws IOException {
+        File completedFile = new File(mCacheDirectory, mKeyGenerator.generate(url));
+        byte[] data;
+        try {
+            data = download(url, headers);
+        } catch (IOException e) {
+            if (!completedFile.exists()) throw e;
+            L.d("use cached playlist " + url);
+            return readCached(completedFile);
+        }
+        //缓存的版本正在被读取时不替换，下次加载时再更新
+        if (!CacheFile.deleteIfUnused(mCacheDirectory, completedFile.getName())) return new String(data, "UTF-8");
+        CacheFile cacheFile = CacheFile.acquire(completedFile);
+        try {
+            cacheFile.write(0, data, 0, data.length);
+            cacheFile.setLength(data.length);
+        } finally {
+            cacheFile.release();
+        }
+        return new String(data, "UTF-8");
+    }
+
+    private static String readCached(File file) throws IOException {
+        CacheFile cacheFile = CacheFile.acquire(file);
+        try {
+            byte[] data = new byte[(int) cacheFile.getLength()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = cacheFile.read(data, offset, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            return new String(data, 0, offset, "UTF-8");
+        } finally {
+            cacheFile.release();
+        }
+    }
+
+    private static byte[] download(String url, Map<String, String> headers) throws IOException {
+        HttpUrlSource source = new HttpUrlSource(url, headers);
+        try {
+            source.open(0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = source.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_PLAYLIST_SIZE) throw new IOException("Playlist is too large: " + url);
+            }
+            return out.toByteArray();
+        } finally {
+            source.close();
+        }
+    }
+
+    private static boolean isMasterPlaylist(String text) {
+        return text.contains("#EXT-X-STREAM-INF");
+    }
+
+    private static String getFirstVariant(String url, String text) {
+        boolean nextIsVariant = false;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("#EXT-X-STREAM-INF")) {
+                nextIsVariant = true;
+            } else if (nextIsVariant && !line.isEmpty() && !line.startsWith("#")) {
+                return resolve(url, line);
+            }
+        }
+        return null;
+    }
+
+    private static String resolve(String base, String url) {
+        try {
+            return URI.create(base).resolve(url.replace(" ", "%20")).toString();
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+}
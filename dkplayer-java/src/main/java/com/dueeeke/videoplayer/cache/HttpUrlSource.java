@@ -0,0 +1,260 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 从源站读取视频数据，支持Range请求
+ */
+public class HttpUrlSource {
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int TIMEOUT = 15 * 1000;
+
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+    private volatile HttpURLConnection mConnection;
+    private volatile InputStream mInputStream;
+    private long mLength = -1;
+    private String mMime;
+    private String mETag;
+    private String mLastModified;
+    private String mExpectedETag;
+    private String mExpectedLastModified;
+    private boolean mContentChanged;
+    private boolean mRangeSupported;
+
+    public HttpUrlSource(String url, Map<String, String> headers) {
+        this.mUrl = url;
+        this.mHeaders = headers;
+    }
+
+    /**
+     * 设置已缓存数据的校验信息，续传时通过If-Range确认源站内容没有变化
+     */
+    public void setValidators(String eTag, String lastModified) {
+        this.mExpectedETag = eTag;
+        this.mExpectedLastModified = lastModified;
+    }
+
+    /**
+     * 从指定位置开始请求数据
+     *
+     * @param offset 起始位置
+     */
+    public void open(long offset) throws IOException {
+        open(offset, -1);
+    }
+
+    /**
+     * 请求[offset, end)的数据，用于分段下载，源站必须支持Range
+     *
+     * @param end 结束位置，-1表示到结尾
+     */
+    public void open(long offset, long end) throws IOException {
+        String ifRange = offset > 0 ? getIfRange() : null;
+        Map<String, String> properties = new HashMap<>();
+        if (end >= 0) {
+            properties.put("Range", "bytes=" + offset + "-" + (end - 1));
+        } else if (offset > 0) {
+            properties.put("Range", "bytes=" + offset + "-");
+        }
+        if (ifRange != null) properties.put("If-Range", ifRange);
+        HttpURLConnection connection = openConnection("GET", properties);
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Error fetching " + mUrl + ", response code: " + code);
+        }
+        if (end >= 0 && code != HttpURLConnection.HTTP_PARTIAL) {
+            //不跳过前面的数据，由调用方改为不分段下载
+            connection.disconnect();
+            throw new IOException("Range is not supported by " + mUrl);
+        }
+        mConnection = connection;
+        mMime = connection.getContentType();
+        mETag = connection.getHeaderField("ETag");
+        mLastModified = connection.getHeaderField("Last-Modified");
+        //If-Range不匹配时源站返回200和完整内容，但不支持Range的源站也返回200，只有校验信息不一致时才认为内容变化
+        mContentChanged = isChanged(mExpectedETag, mETag) || isChanged(mExpectedLastModified, mLastModified);
+        //请求了Range却返回200且内容没有变化，说明源站忽略了Range
+        boolean rangeIgnored = offset > 0 && code == HttpURLConnection.HTTP_OK && !mContentChanged;
+        mRangeSupported = code == HttpURLConnection.HTTP_PARTIAL
+                || (!rangeIgnored && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")));
+        mInputStream = connection.getInputStream();
+        long contentLength = getContentLength(connection);
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            long total = parseContentRangeTotal(connection.getHeaderField("Content-Range"));
+            mLength = total >= 0 ? total : contentLength < 0 ? -1 : offset + contentLength;
+        } else {
+            //源站不支持Range，只能跳过前面的数据
+            mLength = contentLength;
+            skip(offset);
+        }
+    }
+
+    /**
+     * 发送条件HEAD请求，验证已完整缓存的数据是否仍然有效，不下载数据。
+     * 之后可以通过{@link #getETag()}等获取源站当前的信息
+     *
+     * @return 响应码，304表示源站内容没有变化
+     */
+    public int validate(String eTag, String lastModified) throws IOException {
+        Map<String, String> properties = new HashMap<>();
+        if (!TextUtils.isEmpty(eTag)) properties.put("If-None-Match", eTag);
+        if (!TextUtils.isEmpty(lastModified)) properties.put("If-Modified-Since", lastModified);
+        HttpURLConnection connection = openConnection("HEAD", properties);
+        try {
+            int code = connection.getResponseCode();
+            mMime = connection.getContentType();
+            mETag = connection.getHeaderField("ETag");
+            mLastModified = connection.getHeaderField("Last-Modified");
+            mLength = code == HttpURLConnection.HTTP_OK ? getContentLength(connection) : -1;
+            return code;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * If-Range只能使用强ETag，没有时使用Last-Modified
+     */
+    private String getIfRange() {
+        if (!TextUtils.isEmpty(mExpectedETag) && !mExpectedETag.startsWith("W/")) return mExpectedETag;
+        if (!TextUtils.isEmpty(mExpectedLastModified)) return mExpectedLastModified;
+        return null;
+    }
+
+    private static boolean isChanged(String expected, String actual) {
+        return !TextUtils.isEmpty(expected) && !TextUtils.isEmpty(actual) && !expected.equals(actual);
+    }
+
+    private HttpURLConnection openConnection(String method, Map<String, String> properties) throws IOException {
+        String url = mUrl;
+        int redirects = 0;
+        while (true) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestMethod(method);
+            if (mHeaders != null) {
+                for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                connection.setRequestProperty(property.getKey(), property.getValue());
+            }
+            int code = connection.getResponseCode();
+            boolean redirected = code == HttpURLConnection.HTTP_MOVED_PERM
+                    || code == HttpURLConnection.HTTP_MOVED_TEMP
+                    || code == HttpURLConnection.HTTP_SEE_OTHER
+                    || code == 307 || code == 308;
+            if (!redirected) return connection;
+            url = connection.getHeaderField("Location");
+            connection.disconnect();
+            if (TextUtils.isEmpty(url) || ++redirects > MAX_REDIRECTS) {
+                throw new IOException("Too many redirects: " + redirects);
+            }
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            long skipped = mInputStream.skip(count);
+            if (skipped <= 0) throw new IOException("Unable to skip to offset");
+            count -= skipped;
+        }
+    }
+
+    public int read(byte[] buffer, int offset, int size) throws IOException {
+        InputStream inputStream = mInputStream;
+        if (inputStream == null) throw new IOException("Source is not opened");
+        return inputStream.read(buffer, offset, size);
+    }
+
+    /**
+     * 关闭连接，可在其他线程调用以中断阻塞的读取
+     */
+    public void close() {
+        InputStream inputStream = mInputStream;
+        mInputStream = null;
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        HttpURLConnection connection = mConnection;
+        mConnection = null;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 获取视频总长度，未知时返回-1
+     */
+    public long length() {
+        return mLength;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 源站内容是否和校验信息不一致，即已缓存的数据已经失效
+     */
+    public boolean isContentChanged() {
+        return mContentChanged;
+    }
+
+    /**
+     * 源站是否支持Range请求，可以分段并行下载
+     */
+    public boolean isRangeSupported() {
+        return mRangeSupported;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    private static long getContentLength(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析 Content-Range: bytes 0-99/1000 中的总长度
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) return -1;
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0 || index == contentRange.length() - 1) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.dueeeke.videoplayer.cache;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 内存缓存，保存最近播放的几个视频的开头部分，位于磁盘缓存之前。
+ * 数据保存在堆外的{@link ByteBuffer}块中，块在条目之间复用，按最近最少使用淘汰。
+ * 来回滑动切换视频时直接从内存读取开头，减少磁盘读取和首帧耗时。
+ */
+public class MemoryCache {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final long MIN_AUTO_SIZE = 4 * 1024 * 1024;
+    private static final long MAX_AUTO_SIZE = 32 * 1024 * 1024;
+
+    private final int mMaxSlabs;
+    private final long mHeadSize;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> mFreeSlabs = new ArrayDeque<>();
+    private int mAllocatedSlabs;
+    private int mSlabLimit;
+
+    private static class Entry {
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        long length;//从0开始连续缓存的字节数
+    }
+
+    /**
+     * @param maxSize  占用内存上限
+     * @param headSize 每个视频缓存的开头字节数
+     */
+    public MemoryCache(long maxSize, long headSize) {
+        this.mMaxSlabs = (int) Math.max(1, maxSize / SLAB_SIZE);
+        this.mSlabLimit = mMaxSlabs;
+        this.mHeadSize = Math.min(headSize, maxSize);
+    }
+
+    /**
+     * 根据应用的内存等级计算内存缓存大小，为其1/16，限制在4M到32M之间
+     */
+    public static long getDefaultSize(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClass = am == null ? 0 : am.getMemoryClass() * 1024L * 1024L;
+        return Math.max(MIN_AUTO_SIZE, Math.min(MAX_AUTO_SIZE, memoryClass / 16));
+    }
+
+    /**
+     * 读取缓存的数据
+     *
+     * @return 读取的字节数，未命中返回0
+     */
+    public synchronized int read(String key, long position, byte[] buffer, int offset, int size) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || position >= entry.length) return 0;
+        int length = (int) Math.min(size, entry.length - position);
+        int read = 0;
+        while (read < length) {
+            long pos = position + read;
+            ByteBuffer slab = entry.slabs.get((int) (pos / SLAB_SIZE)).duplicate();
+            int slabOffset = (int) (pos % SLAB_SIZE);
+            int count = Math.min(length - read, SLAB_SIZE - slabOffset);
+            slab.position(slabOffset);
+            slab.get(buffer, offset + read, count);
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * 写入数据，只保存从0开始连续的、位于开头部分的数据
+     */
+    public synchronized void write(String key, long position, byte[] buffer, int offset, int size) {
+        if (position >= mHeadSize) return;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            if (position != 0) return;
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        if (position > entry.length || position + size <= entry.length) return;
+        //跳过已有的部分
+        int skip = (int) (entry.length - position);
+        offset += skip;
+        size = (int) Math.min(size - skip, mHeadSize - entry.length);
+        while (size > 0) {
+            int slabOffset = (int) (entry.length % SLAB_SIZE);
+            if (slabOffset == 0) {
+                ByteBuffer slab = obtainSlab(entry);
+                if (slab == null) break;
+                entry.slabs.add(slab);
+            }
+            ByteBuffer slab = entry.slabs.get(entry.slabs.size() - 1).duplicate();
+            int count = Math.min(size, SLAB_SIZE - slabOffset);
+            slab.position(slabOffset);
+            slab.put(buffer, offset, count);
+            entry.length += count;
+            offset += count;
+            size -= count;
+        }
+        if (entry.length == 0) mEntries.remove(key);
+    }
+
+    /**
+     * 获取一个空闲块，不足时淘汰最久未使用的条目
+     */
+    private ByteBuffer obtainSlab(Entry owner) {
+        while (mFreeSlabs.isEmpty() && mAllocatedSlabs >= mSlabLimit) {
+            if (!evictEldest(owner)) return null;
+        }
+        if (!mFreeSlabs.isEmpty()) return mFreeSlabs.poll();
+        mAllocatedSlabs++;
+        return ByteBuffer.allocateDirect(SLAB_SIZE);
+    }
+
+    private boolean evictEldest(Entry except) {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry == except) continue;
+            iterator.remove();
+            recycle(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private void recycle(Entry entry) {
+        for (ByteBuffer slab : entry.slabs) {
+            if (mAllocatedSlabs > mSlabLimit) {
+                //超出限制的块直接丢弃，由GC释放堆外内存
+                mAllocatedSlabs--;
+            } else {
+                slab.clear();
+                mFreeSlabs.push(slab);
+            }
+        }
+        entry.slabs.clear();
+        entry.length = 0;
+    }
+
+    /**
+     * 是否缓存了key对应视频的开头，不影响淘汰顺序
+     */
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) recycle(entry);
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            recycle(entry);
+        }
+        mEntries.clear();
+        mAllocatedSlabs -= mFreeSlabs.size();
+        mFreeSlabs.clear();
+    }
+
+    /**
+     * 响应系统内存不足，在后台时清空，前台内存紧张时减半
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+            mSlabLimit = mMaxSlabs;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mSlabLimit = Math.max(1, mMaxSlabs / 2);
+            while (mAllocatedSlabs - mFreeSlabs.size() > mSlabLimit && evictEldest(null)) {
+                //淘汰直到满足限制
+            }
+            while (mAllocatedSlabs > mSlabLimit && !mFreeSlabs.isEmpty()) {
+                mFreeSlabs.poll();
+                mAllocatedSlabs--;
+            }
+        }
+    }
+
+    /**
+     * 当前占用的内存
+     */
+    public synchronized long getSize() {
+        return (long) mAllocatedSlabs * SLAB_SIZE;
+    }
+}
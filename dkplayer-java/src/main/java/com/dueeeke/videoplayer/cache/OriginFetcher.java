@@ -0,0 +1,533 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在固定数量的线程中从源站下载数据并写入缓存文件。
+ * 同一个缓存文件的请求位置在正在下载的位置附近时复用同一个下载，不会重复请求源站。
+ * 边下边播数据源、本地代理和预加载共用一个实例，多个播放器播放同一个视频时只下载一次，
+ * 每个读取方只等待自己需要的区间。
+ * 源站支持Range的大文件会分段并行下载：从读取位置之后的空缺开始，按下载速度调整连接数，
+ * 每个域名的连接数有上限。
+ */
+public class OriginFetcher {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static final int THREAD_COUNT = 4;
+    /**
+     * 同时进行的离线下载数上限，小于读取方的线程数
+     */
+    public static final int MAX_PARALLEL_DOWNLOADS = THREAD_COUNT - 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * 请求位置在正在下载的位置之后这么多字节以内时，等待该下载而不是新建连接
+     */
+    private static final long REUSE_DISTANCE = 512 * 1024;
+    /**
+     * 分段下载时每段的大小，读取方的下载也预留这么多
+     */
+    private static final long RANGE_SIZE = 2 * 1024 * 1024;
+    /**
+     * 小于这个长度的视频不分段下载
+     */
+    private static final long PARALLEL_MIN_LENGTH = 2 * RANGE_SIZE;
+    /**
+     * 每隔这么久根据下载速度调整一次连接数
+     */
+    private static final long SAMPLE_INTERVAL_NS = 500 * 1000 * 1000L;
+
+    interface Listener {
+        /**
+         * 有新数据写入缓存、总长度已知或下载结束，在下载线程回调
+         */
+        void onDataAvailable();
+
+        void onFetchError(IOException e);
+    }
+
+    interface OnProgressListener {
+        void onProgress(String url, CacheFile cacheFile);
+    }
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+    //离线下载使用单独的线程，不占用播放和预加载的线程
+    private final ExecutorService mDownloadExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS);
+    //分段下载的线程数由每个域名的连接数限制
+    private final ExecutorService mRangeExecutor = Executors.newCachedThreadPool();
+    private final Map<String, FetchGroup> mGroups = new HashMap<>();
+    private final CopyOnWriteArrayList<OnProgressListener> mOnProgressListeners = new CopyOnWriteArrayList<>();
+    private volatile MemoryCache mMemoryCache;
+    private volatile int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * 设置内存缓存，源站内容变化时移除其中的旧数据
+     */
+    public void setMemoryCache(MemoryCache memoryCache) {
+        this.mMemoryCache = memoryCache;
+    }
+
+    /**
+     * 设置每个域名同时建立的最大连接数，1表示不分段下载
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    void addOnProgressListener(OnProgressListener listener) {
+        mOnProgressListeners.addIfAbsent(listener);
+    }
+
+    void removeOnProgressListener(OnProgressListener listener) {
+        mOnProgressListeners.remove(listener);
+    }
+
+    synchronized FetchTask request(String url, Map<String, String> headers, File completedFile,
+                                   long position, Listener listener) {
+        return request(url, headers, completedFile, position, Long.MAX_VALUE, listener);
+    }
+
+    /**
+     * 请求从position开始的数据，数据到达时通知listener。
+     * 切换下载时先请求新的再移除旧的，避免分段下载因为短暂没有读取方而停止
+     *
+     * @param completedFile 缓存文件
+     * @param end           需要的数据的结束位置，分段下载不会超过它
+     * @return 负责该位置的下载，不再需要时调用 {@link #removeListener}
+     */
+    synchronized FetchTask request(String url, Map<String, String> headers, File completedFile,
+                                   long position, long end, Listener listener) {
+        return request(url, headers, completedFile, position, end, listener, false);
+    }
+
+    /**
+     * 离线下载请求数据，新建的下载在离线下载的线程中执行
+     */
+    synchronized FetchTask requestDownload(String url, Map<String, String> headers, File completedFile,
+                                           long position, Listener listener) {
+        return request(url, headers, completedFile, position, Long.MAX_VALUE, listener, true);
+    }
+
+    private FetchTask request(String url, Map<String, String> headers, File completedFile,
+                              long position, long end, Listener listener, boolean download) {
+        String key = completedFile.getName();
+        FetchGroup group = mGroups.get(key);
+        if (group == null) {
+            group = new FetchGroup(key, Math.min(2, mMaxConnectionsPerHost));
+            mGroups.put(key, group);
+        }
+        group.mInterest++;
+        group.mPlayhead = position;
+        group.mFillEnd = Math.max(group.mFillEnd, end);
+        for (FetchTask task : group.mTasks) {
+            if (task.covers(position)) {
+                task.mListeners.add(listener);
+                return task;
+            }
+        }
+        FetchTask task = new FetchTask(group, url, headers, completedFile, position, Long.MAX_VALUE, false);
+        task.mListeners.add(listener);
+        addTask(group, task);
+        (download ? mDownloadExecutor : mExecutor).execute(task);
+        return task;
+    }
+
+    /**
+     * 移除监听，没有监听的下载会被取消，没有读取方时停止分段下载
+     */
+    synchronized void removeListener(FetchTask task, Listener listener) {
+        if (!task.mListeners.remove(listener)) return;
+        if (task.mListeners.isEmpty() && !task.mRange) task.cancel();
+        FetchGroup group = task.mGroup;
+        if (--group.mInterest > 0) return;
+        for (FetchTask rangeTask : group.mTasks) {
+            if (rangeTask.mRange) rangeTask.cancel();
+        }
+        if (group.mTasks.isEmpty() && mGroups.get(group.mKey) == group) mGroups.remove(group.mKey);
+    }
+
+    /**
+     * 加入新的下载，和其他下载的区间不重叠
+     */
+    private void addTask(FetchGroup group, FetchTask task) {
+        trimTasks(group, task);
+        group.mTasks.add(task);
+        if (task.mRange) group.mRangeCount++;
+    }
+
+    /**
+     * 在task的起始位置截断之前的下载，task在之后的下载的起始位置结束
+     */
+    private static void trimTasks(FetchGroup group, FetchTask task) {
+        long position = task.mPosition;
+        for (FetchTask other : group.mTasks) {
+            if (other == task || other.mFinished) continue;
+            long otherPosition = other.mPosition;
+            if (otherPosition < position && other.mEnd > position) {
+                other.mEnd = position;
+            } else if (otherPosition > position && task.mEnd > otherPosition) {
+                task.mEnd = otherPosition;
+            }
+        }
+    }
+
+    /**
+     * 源站连接建立后按目标连接数补充分段下载
+     */
+    private synchronized void startRanges(FetchTask origin, CacheFile cacheFile) {
+        FetchGroup group = origin.mGroup;
+        if (group.mInterest <= 0 || !group.mRangeSupported) return;
+        long length = cacheFile.getLength();
+        if (length < PARALLEL_MIN_LENGTH) return;
+        while (group.mRangeCount < group.mTarget - 1 && getConnectionCount(origin.mHost) < mMaxConnectionsPerHost) {
+            long[] range = findRange(group, cacheFile, length);
+            if (range == null) return;
+            FetchTask task = new FetchTask(group, origin.mUrl, origin.mHeaders, origin.mCompletedFile,
+                    range[0], range[1], true);
+            addTask(group, task);
+            mRangeExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 分段下载完成一段后领取下一段
+     *
+     * @return 没有需要下载的数据或连接数已超过目标时返回false
+     */
+    private synchronized boolean nextRange(FetchTask task, CacheFile cacheFile) {
+        FetchGroup group = task.mGroup;
+        adjustTarget(group);
+        if (group.mInterest <= 0 || !group.mRangeSupported || group.mRangeCount > group.mTarget - 1) return false;
+        long length = cacheFile.getLength();
+        //先让出当前区间，避免查找时把自己当作正在下载
+        task.mEnd = task.mPosition;
+        long[] range = length < 0 ? null : findRange(group, cacheFile, length);
+        if (range == null) return false;
+        task.mPosition = range[0];
+        task.mEnd = range[1];
+        trimTasks(group, task);
+        startRanges(task, cacheFile);
+        return true;
+    }
+
+    /**
+     * 增加连接后速度明显提高时继续增加，明显下降时减少
+     */
+    private void adjustTarget(FetchGroup group) {
+        long now = System.nanoTime();
+        long elapsed = now - group.mSampleTime;
+        if (elapsed < SAMPLE_INTERVAL_NS) return;
+        long bytes = group.mBytes.get();
+        long rate = (bytes - group.mSampleBytes) * 1000 * 1000 * 1000L / elapsed;
+        if (rate > group.mLastRate + group.mLastRate / 10) {
+            group.mTarget = Math.min(group.mTarget + 1, mMaxConnectionsPerHost);
+        } else if (rate < group.mLastRate - group.mLastRate / 10) {
+            group.mTarget = Math.max(group.mTarget - 1, Math.min(2, mMaxConnectionsPerHost));
+        }
+        group.mLastRate = rate;
+        group.mSampleBytes = bytes;
+        group.mSampleTime = now;
+    }
+
+    /**
+     * 优先下载读取位置之后的空缺，之后再补齐前面的
+     */
+    private static long[] findRange(FetchGroup group, CacheFile cacheFile, long length) {
+        long end = Math.min(length, group.mFillEnd);
+        long playhead = Math.min(group.mPlayhead, end);
+        long[] range = findRange(group, cacheFile, playhead, end);
+        return range != null ? range : findRange(group, cacheFile, 0, playhead);
+    }
+
+    private static long[] findRange(FetchGroup group, CacheFile cacheFile, long start, long end) {
+        for (long[] gap : cacheFile.getGaps(start, end)) {
+            long position = gap[0];
+            while (position < gap[1]) {
+                long busyEnd = -1;
+                long nextBusy = gap[1];
+                for (FetchTask task : group.mTasks) {
+                    if (task.mFinished) continue;
+                    long taskPosition = task.mPosition;
+                    //读取方的下载没有结束位置，预留一段给它
+                    long taskEnd = task.mRange ? task.mEnd : Math.min(task.mEnd, taskPosition + RANGE_SIZE);
+                    if (taskPosition <= position && position < taskEnd) {
+                        busyEnd = Math.max(busyEnd, taskEnd);
+                    } else if (taskPosition > position) {
+                        nextBusy = Math.min(nextBusy, taskPosition);
+                    }
+                }
+                if (busyEnd > position) {
+                    position = busyEnd;
+                    continue;
+                }
+                return new long[]{position, Math.min(nextBusy, position + RANGE_SIZE)};
+            }
+        }
+        return null;
+    }
+
+    private int getConnectionCount(String host) {
+        int count = 0;
+        for (FetchGroup group : mGroups.values()) {
+            for (FetchTask task : group.mTasks) {
+                if (!task.mFinished && host.equals(task.mHost)) count++;
+            }
+        }
+        return count;
+    }
+
+    private synchronized void onRangeSupported(FetchGroup group, boolean supported) {
+        group.mRangeSupported = supported && !group.mRangeFailed;
+        if (!supported) group.mRangeFailed = true;
+    }
+
+    private synchronized void onTaskFinished(FetchTask task) {
+        FetchGroup group = task.mGroup;
+        group.mTasks.remove(task);
+        if (task.mRange) group.mRangeCount--;
+        if (group.mTasks.isEmpty() && group.mInterest <= 0 && mGroups.get(group.mKey) == group) {
+            mGroups.remove(group.mKey);
+        }
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            for (FetchGroup group : mGroups.values()) {
+                for (FetchTask task : group.mTasks) {
+                    task.cancel();
+                }
+            }
+        }
+        mExecutor.shutdown();
+        mDownloadExecutor.shutdown();
+        mRangeExecutor.shutdown();
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? url : host;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    /**
+     * 同一个缓存文件的所有下载
+     */
+    private static class FetchGroup {
+
+        final String mKey;
+        final List<FetchTask> mTasks = new ArrayList<>();
+        final AtomicLong mBytes = new AtomicLong();
+        int mInterest;//读取方的数量
+        long mPlayhead;//最近一次请求的位置
+        long mFillEnd;//读取方需要的最大位置
+        boolean mRangeSupported;
+        boolean mRangeFailed;
+        int mRangeCount;
+        int mTarget;//目标连接数，包括读取方的下载
+        long mLastRate;
+        long mSampleBytes;
+        long mSampleTime = System.nanoTime();
+
+        FetchGroup(String key, int target) {
+            this.mKey = key;
+            this.mTarget = target;
+        }
+    }
+
+    class FetchTask implements Runnable {
+
+        private final FetchGroup mGroup;
+        private final String mUrl;
+        private final Map<String, String> mHeaders;
+        private final String mHost;
+        private final File mCompletedFile;
+        private final HttpUrlSource mSource;
+        private final boolean mRange;//分段下载，没有读取方时也会继续
+        private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+        private volatile long mPosition;
+        private volatile long mEnd;
+        private volatile boolean mFinished;
+        private volatile boolean mCancelled;
+        private volatile boolean mOpened;//已收到源站的响应
+
+        FetchTask(FetchGroup group, String url, Map<String, String> headers, File completedFile,
+                  long position, long end, boolean range) {
+            this.mGroup = group;
+            this.mUrl = url;
+            this.mHeaders = headers;
+            this.mHost = getHost(url);
+            this.mCompletedFile = completedFile;
+            this.mSource = new HttpUrlSource(url, headers);
+            this.mPosition = position;
+            this.mEnd = end;
+            this.mRange = range;
+        }
+
+        @Override
+        public void run() {
+            CacheFile cacheFile = null;
+            try {
+                if (mCancelled) return;
+                cacheFile = CacheFile.acquire(mCompletedFile);
+                fetch(cacheFile);
+                while (mRange && !mCancelled && nextRange(this, cacheFile)) {
+                    mSource.close();
+                    fetch(cacheFile);
+                }
+            } catch (IOException e) {
+                if (mRange) {
+                    //分段下载出错时不再分段，读取方会重新请求
+                    if (!mCancelled) L.e("range fetch " + mUrl + " failed: " + e.getMessage());
+                    onRangeSupported(mGroup, false);
+                } else if (!mCancelled) {
+                    L.e("fetch " + mUrl + " failed: " + e.getMessage());
+                    mFinished = true;
+                    onTaskFinished(this);
+                    for (Listener listener : mListeners) {
+                        listener.onFetchError(e);
+                    }
+                }
+            } finally {
+                mSource.close();
+                if (cacheFile != null) cacheFile.release();
+                if (!mFinished) {
+                    mFinished = true;
+                    onTaskFinished(this);
+                    //请求的数据可能需要新的下载，通知等待者重新检查
+                    notifyDataAvailable();
+                }
+            }
+        }
+
+        private void fetch(CacheFile cacheFile) throws IOException {
+            //区间可能已被之后开始的下载占用
+            if (cacheFile.isCompleted() || mPosition >= mEnd) return;
+            if (cacheFile.openSource(mSource, mPosition, mRange ? mEnd : -1)) {
+                MemoryCache memoryCache = mMemoryCache;
+                if (memoryCache != null) memoryCache.remove(mCompletedFile.getName());
+            }
+            mOpened = true;
+            notifyDataAvailable();
+            if (!mRange && mMaxConnectionsPerHost > 1) {
+                onRangeSupported(mGroup, mSource.isRangeSupported());
+                startRanges(this, cacheFile);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!mCancelled) {
+                long length = cacheFile.getLength();
+                if (length >= 0 && mPosition >= length) break;
+                //下载到结束位置或下一个已缓存的区间为止
+                long end = mEnd;
+                if (mPosition >= end || cacheFile.isCached(mPosition)) break;
+                long nextCached = cacheFile.getNextCachedStart(mPosition);
+                if (nextCached > mPosition) end = Math.min(end, nextCached);
+                int read = mSource.read(buffer, 0, (int) Math.min(BUFFER_SIZE, end - mPosition));
+                if (read < 0) {
+                    if (cacheFile.getLength() < 0) cacheFile.setLength(mPosition);
+                    break;
+                }
+                cacheFile.write(mPosition, buffer, 0, read);
+                mPosition += read;
+                mGroup.mBytes.addAndGet(read);
+                notifyDataAvailable();
+                for (OnProgressListener listener : mOnProgressListeners) {
+                    listener.onProgress(mUrl, cacheFile);
+                }
+            }
+        }
+
+        private void notifyDataAvailable() {
+            for (Listener listener : mListeners) {
+                listener.onDataAvailable();
+            }
+        }
+
+        /**
+         * 是否已收到源站的响应，之后缓存文件的长度已知，或者源站没有返回长度
+         */
+        boolean isOpened() {
+            return mOpened;
+        }
+
+        /**
+         * 该下载是否会经过position，可以等待它而不是新建下载
+         */
+        boolean covers(long position) {
+            long taskPosition = mPosition;
+            return !mFinished && taskPosition <= position && position < mEnd
+                    && position <= taskPosition + REUSE_DISTANCE;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            //断开连接，使阻塞中的读取立即返回
+            mSource.close();
+        }
+    }
+
+    /**
+     * 在调用方线程阻塞等待下载，供边下边播数据源和预加载使用
+     */
+    static class Waiter implements Listener {
+
+        private boolean mSignalled;
+        private boolean mCancelled;
+        private IOException mError;
+
+        @Override
+        public synchronized void onDataAvailable() {
+            mSignalled = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFetchError(IOException e) {
+            mError = e;
+            notifyAll();
+        }
+
+        /**
+         * 等待到有新数据或下载结束，之后由调用方重新检查缓存
+         *
+         * @throws IOException 下载出错或等待被取消
+         */
+        synchronized void await() throws IOException {
+            while (!mSignalled && mError == null && !mCancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for data");
+                }
+            }
+            mSignalled = false;
+            if (mCancelled) throw new InterruptedIOException("Cancelled");
+            if (mError != null) {
+                IOException error = mError;
+                mError = null;
+                throw error;
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.cache.evictor.CacheEvictor;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 预加载，在后台下载即将播放的视频的开头部分。
+ * 下载由{@link OriginFetcher}完成，开始播放时播放器直接接上正在进行的预加载，不会重复下载
+ */
+public class Preloader {
+
+    private static final int THREAD_COUNT = 2;
+    private static final int MAX_PENDING_TASKS = 8;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final LinkedHashMap<String, PreloadTask> mTasks = new LinkedHashMap<>();
+    private final CacheEvictor mEvictor;
+    private final OriginFetcher mFetcher;
+
+    public Preloader(CacheEvictor evictor, OriginFetcher fetcher) {
+        this.mEvictor = evictor;
+        this.mFetcher = fetcher;
+    }
+
+    /**
+     * 预加载url对应视频的前size个字节，已在队列中的缓存不会重复添加。
+     * 等待中的任务超过上限时丢弃最早加入的任务。
+     *
+     * @param cacheFile 缓存文件，文件名即缓存key
+     */
+    public synchronized void preload(String url, File cacheFile, long size) {
+        String key = cacheFile.getName();
+        if (mTasks.containsKey(key)) return;
+        PreloadTask task = new PreloadTask(url, cacheFile, size);
+        mTasks.put(key, task);
+        trimPendingTasks();
+        mExecutor.execute(task);
+    }
+
+    private void trimPendingTasks() {
+        int pending = 0;
+        for (PreloadTask task : mTasks.values()) {
+            if (!task.mStarted) pending++;
+        }
+        Iterator<PreloadTask> iterator = mTasks.values().iterator();
+        while (pending > MAX_PENDING_TASKS && iterator.hasNext()) {
+            PreloadTask task = iterator.next();
+            if (!task.mStarted) {
+                task.cancel();
+                iterator.remove();
+                pending--;
+            }
+        }
+    }
+
+    /**
+     * 取消预加载
+     *
+     * @param key 缓存key
+     */
+    public void cancel(String key) {
+        PreloadTask task;
+        synchronized (this) {
+            task = mTasks.remove(key);
+        }
+        if (task != null) task.cancel();
+    }
+
+    /**
+     * 取消所有预加载
+     */
+    public synchronized void cancelAll() {
+        for (PreloadTask task : mTasks.values()) {
+            task.cancel();
+        }
+        mTasks.clear();
+    }
+
+    private synchronized void onTaskFinished(PreloadTask task) {
+        String key = task.mCacheFile.getName();
+        if (mTasks.get(key) == task) {
+            mTasks.remove(key);
+        }
+    }
+
+    private class PreloadTask implements Runnable {
+
+        private final String mUrl;
+        private final File mCacheFile;
+        private final long mSize;
+        private final OriginFetcher.Waiter mWaiter = new OriginFetcher.Waiter();
+        private volatile boolean mStarted;
+        private volatile boolean mCancelled;
+
+        PreloadTask(String url, File cacheFile, long size) {
+            this.mUrl = url;
+            this.mCacheFile = cacheFile;
+            this.mSize = size;
+        }
+
+        @Override
+        public void run() {
+            mStarted = true;
+            CacheFile cacheFile = null;
+            try {
+                if (mCancelled) return;
+                cacheFile = CacheFile.acquire(mCacheFile);
+                long end = cacheFile.getLength() < 0 ? mSize : Math.min(mSize, cacheFile.getLength());
+                //跳过已缓存的区间，只下载空缺的部分
+                for (long[] gap : cacheFile.getGaps(0, end)) {
+                    if (mCancelled) break;
+                    fill(cacheFile, gap[0], gap[1]);
+                }
+                L.d("preload " + mUrl + " finished, cached " + cacheFile.available() + " bytes");
+            } catch (IOException e) {
+                if (!mCancelled) L.e("preload " + mUrl + " failed: " + e.getMessage());
+            } finally {
+                if (cacheFile != null) {
+                    cacheFile.release();
+                    mEvictor.touch(mCacheFile.getName());
+                }
+                onTaskFinished(this);
+            }
+        }
+
+        /**
+         * 等待下载填满[start, end)，同一位置已有下载(如正在播放)时直接复用
+         */
+        private void fill(CacheFile cacheFile, long start, long end) throws IOException {
+            OriginFetcher.FetchTask task = null;
+            try {
+                long position = start;
+                while (!mCancelled && position < end) {
+                    long length = cacheFile.getLength();
+                    if (length >= 0 && position >= length) break;
+                    if (task == null || !task.covers(position)) {
+                        OriginFetcher.FetchTask previous = task;
+                        task = mFetcher.request(mUrl, null, mCacheFile, position, end, mWaiter);
+                        if (previous != null) mFetcher.removeListener(previous, mWaiter);
+                    }
+                    mWaiter.await();
+                    position = cacheFile.getCachedEnd(position);
+                }
+            } finally {
+                //不再有其他读取方时下载会被取消，只下载到end附近
+                if (task != null) mFetcher.removeListener(task, mWaiter);
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            //唤醒阻塞中的等待
+            mWaiter.cancel();
+        }
+    }
+}
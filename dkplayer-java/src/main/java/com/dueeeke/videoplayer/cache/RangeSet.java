@@ -0,0 +1,130 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 已缓存区间集合，区间为左闭右开 [start, end)，相邻或重叠的区间会被合并
+ */
+public class RangeSet {
+
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+    private long mBytes;
+
+    public synchronized void add(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> floor = mRanges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            if (floor.getValue() >= end) return;
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            remove(floor.getKey());
+        }
+        Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            remove(next.getKey());
+            next = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+        mBytes += end - start;
+    }
+
+    private void remove(long start) {
+        Long end = mRanges.remove(start);
+        if (end != null) mBytes -= end - start;
+    }
+
+    public synchronized boolean contains(long position) {
+        return getContiguousEnd(position) > position;
+    }
+
+    /**
+     * 从position开始连续缓存的结束位置，position未缓存时返回position
+     */
+    public synchronized long getContiguousEnd(long position) {
+        Map.Entry<Long, Long> floor = mRanges.floorEntry(position);
+        return floor != null && floor.getValue() > position ? floor.getValue() : position;
+    }
+
+    /**
+     * position之后下一个已缓存区间的起始位置，没有时返回-1
+     */
+    public synchronized long getNextStart(long position) {
+        Long next = mRanges.higherKey(position);
+        return next == null ? -1 : next;
+    }
+
+    /**
+     * [start, end) 范围内未缓存的区间
+     */
+    public synchronized List<long[]> getGaps(long start, long end) {
+        List<long[]> gaps = new ArrayList<>();
+        long position = start;
+        while (position < end) {
+            long cachedEnd = getContiguousEnd(position);
+            if (cachedEnd > position) {
+                position = cachedEnd;
+                continue;
+            }
+            long next = getNextStart(position);
+            long gapEnd = next < 0 ? end : Math.min(next, end);
+            gaps.add(new long[]{position, gapEnd});
+            position = gapEnd;
+        }
+        return gaps;
+    }
+
+    /**
+     * 所有区间的副本，按起始位置排序
+     */
+    public synchronized List<long[]> getRanges() {
+        List<long[]> ranges = new ArrayList<>(mRanges.size());
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            ranges.add(new long[]{range.getKey(), range.getValue()});
+        }
+        return ranges;
+    }
+
+    /**
+     * 已缓存的总字节数
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mRanges.isEmpty();
+    }
+
+    public synchronized void clear() {
+        mRanges.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(mRanges.size());
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    public synchronized void read(DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            add(in.readLong(), in.readLong());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mRanges.toString();
+    }
+}
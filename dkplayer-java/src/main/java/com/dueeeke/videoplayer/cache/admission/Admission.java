@@ -0,0 +1,52 @@
+package com.dueeeke.videoplayer.cache.admission;
+
+/**
+ * 缓存准入结果
+ */
+public class Admission {
+
+    /**
+     * 完整缓存
+     */
+    public static final int MODE_CACHE = 0;
+    /**
+     * 只缓存开头，之后的数据直接从网络读取
+     */
+    public static final int MODE_HEAD_ONLY = 1;
+    /**
+     * 不缓存
+     */
+    public static final int MODE_BYPASS = 2;
+
+    private static final Admission CACHE = new Admission(MODE_CACHE, 0, 0);
+    private static final Admission BYPASS = new Admission(MODE_BYPASS, 0, 0);
+
+    public final int mode;
+    public final long headSize;//只缓存开头时缓存的字节数
+    public final long ttl;//缓存有效期，0表示使用全局配置
+
+    private Admission(int mode, long headSize, long ttl) {
+        this.mode = mode;
+        this.headSize = headSize;
+        this.ttl = ttl;
+    }
+
+    public static Admission cache() {
+        return CACHE;
+    }
+
+    /**
+     * 完整缓存，ttl毫秒后过期，如广告
+     */
+    public static Admission cache(long ttl) {
+        return ttl > 0 ? new Admission(MODE_CACHE, 0, ttl) : CACHE;
+    }
+
+    public static Admission headOnly(long headSize) {
+        return new Admission(MODE_HEAD_ONLY, headSize, 0);
+    }
+
+    public static Admission bypass() {
+        return BYPASS;
+    }
+}
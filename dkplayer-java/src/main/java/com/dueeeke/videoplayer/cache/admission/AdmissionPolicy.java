@@ -0,0 +1,12 @@
+package com.dueeeke.videoplayer.cache.admission;
+
+/**
+ * 缓存准入策略，决定一个视频完整缓存、只缓存开头还是不缓存
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * 在开始播放或预加载前调用
+     */
+    Admission admit(CacheRequest request);
+}
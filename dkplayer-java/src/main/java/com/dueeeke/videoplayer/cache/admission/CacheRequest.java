@@ -0,0 +1,83 @@
+package com.dueeeke.videoplayer.cache.admission;
+
+/**
+ * 缓存准入的判断依据，由业务方提供视频的类型、时长和来源
+ */
+public class CacheRequest {
+
+    /**
+     * 正片
+     */
+    public static final int TAG_CONTENT = 0;
+    /**
+     * 广告
+     */
+    public static final int TAG_AD = 1;
+    /**
+     * 预告、片花等试看内容
+     */
+    public static final int TAG_PREVIEW = 2;
+
+    public final String url;
+    public final String mimeType;//可以为null
+    public final long duration;//声明的时长，单位毫秒，0表示未知
+    public final int tag;//来源标记
+    public final boolean live;//是否为直播
+
+    private CacheRequest(Builder builder) {
+        this.url = builder.mUrl;
+        this.mimeType = builder.mMimeType;
+        this.duration = builder.mDuration;
+        this.tag = builder.mTag;
+        this.live = builder.mLive;
+    }
+
+    public static class Builder {
+
+        private final String mUrl;
+        private String mMimeType;
+        private long mDuration;
+        private int mTag = TAG_CONTENT;
+        private boolean mLive;
+
+        public Builder(String url) {
+            this.mUrl = url;
+        }
+
+        /**
+         * 设置内容类型，如"video/mp4"
+         */
+        public Builder setMimeType(String mimeType) {
+            mMimeType = mimeType;
+            return this;
+        }
+
+        /**
+         * 设置声明的时长，单位毫秒
+         */
+        public Builder setDuration(long duration) {
+            mDuration = duration;
+            return this;
+        }
+
+        /**
+         * 设置来源标记，默认为{@link #TAG_CONTENT}
+         */
+        public Builder setTag(int tag) {
+            mTag = tag;
+            return this;
+        }
+
+        /**
+         * 标记为直播，直播不缓存
+         */
+        public Builder setLive() {
+            mLive = true;
+            return this;
+        }
+
+        public CacheRequest build() {
+            return new CacheRequest(this);
+        }
+    }
+}
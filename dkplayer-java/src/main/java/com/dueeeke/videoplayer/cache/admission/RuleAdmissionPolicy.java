@@ -0,0 +1,125 @@
+package com.dueeeke.videoplayer.cache.admission;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * 按规则决定缓存方式，依次判断：
+ * 直播和匹配不缓存规则的地址、内容类型不缓存；匹配只缓存开头规则的地址只缓存开头；
+ * 广告完整缓存，但很快过期；试看内容和时长过短的视频只缓存开头；其他完整缓存。
+ * 避免直播、广告等一次性内容挤掉正片的缓存。
+ */
+public class RuleAdmissionPolicy implements AdmissionPolicy {
+
+    private static final long DEFAULT_AD_TTL = 24 * 60 * 60 * 1000L;
+    private static final long DEFAULT_HEAD_SIZE = 1024 * 1024;
+
+    private final List<Pattern> mBypassUrls;
+    private final List<String> mBypassMimeTypes;
+    private final List<Pattern> mHeadOnlyUrls;
+    private final long mAdTtl;
+    private final long mHeadSize;
+    private final long mMinFullCacheDuration;
+
+    private RuleAdmissionPolicy(Builder builder) {
+        this.mBypassUrls = builder.mBypassUrls;
+        this.mBypassMimeTypes = builder.mBypassMimeTypes;
+        this.mHeadOnlyUrls = builder.mHeadOnlyUrls;
+        this.mAdTtl = builder.mAdTtl;
+        this.mHeadSize = builder.mHeadSize;
+        this.mMinFullCacheDuration = builder.mMinFullCacheDuration;
+    }
+
+    @Override
+    public Admission admit(CacheRequest request) {
+        if (request.live || matches(mBypassUrls, request.url)) return Admission.bypass();
+        if (request.mimeType != null) {
+            String mimeType = request.mimeType.toLowerCase(Locale.US);
+            for (String prefix : mBypassMimeTypes) {
+                if (mimeType.startsWith(prefix)) return Admission.bypass();
+            }
+        }
+        if (matches(mHeadOnlyUrls, request.url)) return Admission.headOnly(mHeadSize);
+        switch (request.tag) {
+            case CacheRequest.TAG_AD:
+                return Admission.cache(mAdTtl);
+            case CacheRequest.TAG_PREVIEW:
+                return Admission.headOnly(mHeadSize);
+        }
+        if (request.duration > 0 && request.duration < mMinFullCacheDuration) {
+            return Admission.headOnly(mHeadSize);
+        }
+        return Admission.cache();
+    }
+
+    private static boolean matches(List<Pattern> patterns, String url) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(url).find()) return true;
+        }
+        return false;
+    }
+
+    public static class Builder {
+
+        private List<Pattern> mBypassUrls = new ArrayList<>();
+        private List<String> mBypassMimeTypes = new ArrayList<>();
+        private List<Pattern> mHeadOnlyUrls = new ArrayList<>();
+        private long mAdTtl = DEFAULT_AD_TTL;
+        private long mHeadSize = DEFAULT_HEAD_SIZE;
+        private long mMinFullCacheDuration;
+
+        /**
+         * 地址匹配正则时不缓存，如直播、临时活动的域名
+         */
+        public Builder bypassUrl(String regex) {
+            mBypassUrls.add(Pattern.compile(regex));
+            return this;
+        }
+
+        /**
+         * 内容类型以prefix开头时不缓存，如"application/x-mpegurl"
+         */
+        public Builder bypassMimeType(String prefix) {
+            mBypassMimeTypes.add(prefix.toLowerCase(Locale.US));
+            return this;
+        }
+
+        /**
+         * 地址匹配正则时只缓存开头
+         */
+        public Builder headOnlyUrl(String regex) {
+            mHeadOnlyUrls.add(Pattern.compile(regex));
+            return this;
+        }
+
+        /**
+         * 设置广告缓存的有效期，默认1天
+         */
+        public Builder setAdTtl(long adTtl) {
+            mAdTtl = adTtl;
+            return this;
+        }
+
+        /**
+         * 设置只缓存开头时缓存的字节数，默认1M
+         */
+        public Builder setHeadSize(long headSize) {
+            mHeadSize = headSize;
+            return this;
+        }
+
+        /**
+         * 声明的时长小于该值时只缓存开头，单位毫秒，默认不限制
+         */
+        public Builder setMinFullCacheDuration(long duration) {
+            mMinFullCacheDuration = duration;
+            return this;
+        }
+
+        public RuleAdmissionPolicy build() {
+            return new RuleAdmissionPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.dueeeke.videoplayer.cache.evictor;
+
+import com.dueeeke.videoplayer.cache.CacheConfig;
+import com.dueeeke.videoplayer.cache.CacheEntry;
+import com.dueeeke.videoplayer.cache.CacheFile;
+import com.dueeeke.videoplayer.cache.CacheIndex;
+import com.dueeeke.videoplayer.util.L;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 缓存清理，按照{@link CacheConfig}中的配额、有效期和清理策略删除缓存。
+ * 正在播放或预加载的缓存不会被清理，离线下载固定的缓存不会被清理，也不计入配额。
+ * 缓存信息全部来自{@link CacheIndex}，清理时不需要扫描缓存目录，也不需要排序全部条目。
+ * 只有超出配额或有条目过期时才会在后台清理。
+ */
+public class CacheEvictor implements CacheFile.OnCacheChangedListener {
+
+    private final File mCacheDirectory;
+    private final CacheConfig mConfig;
+    private final CacheIndex mIndex;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Integer> mLockedKeys = new HashMap<>();
+    private final AtomicBoolean mTrimPending = new AtomicBoolean();
+
+    public CacheEvictor(File cacheDirectory, CacheConfig config, CacheIndex index) {
+        this.mCacheDirectory = cacheDirectory;
+        this.mConfig = config;
+        this.mIndex = index;
+    }
+
+    /**
+     * 记录一次访问，并在后台检查是否需要清理。大小和完成状态由{@link CacheFile}通知
+     */
+    public void touch(String key) {
+        mIndex.touch(key);
+        trimAsync();
+    }
+
+    @Override
+    public void onCacheChanged(String key, long size, boolean completed) {
+        mIndex.update(key, size, completed);
+        trimAsync();
+    }
+
+    @Override
+    public void onValidatorsChanged(String key, String eTag, String lastModified) {
+        mIndex.setValidators(key, eTag, lastModified);
+    }
+
+    /**
+     * 锁定缓存，锁定期间不会被清理，用于通过本地代理播放的视频
+     */
+    public void lock(String key) {
+        synchronized (mLockedKeys) {
+            Integer count = mLockedKeys.get(key);
+            mLockedKeys.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    public void unlock(String key) {
+        synchronized (mLockedKeys) {
+            Integer count = mLockedKeys.get(key);
+            if (count == null) return;
+            if (count <= 1) {
+                mLockedKeys.remove(key);
+            } else {
+                mLockedKeys.put(key, count - 1);
+            }
+        }
+    }
+
+    /**
+     * 缓存是否被锁定或正在被读写
+     */
+    public boolean isInUse(String key) {
+        synchronized (mLockedKeys) {
+            if (mLockedKeys.containsKey(key)) return true;
+        }
+        return CacheFile.isInUse(new File(mCacheDirectory, key));
+    }
+
+    /**
+     * 缓存没有被锁定也没有被读写时删除缓存文件，检查和删除之间不会被锁定或打开
+     *
+     * @return 是否已删除
+     */
+    public boolean deleteIfUnused(String key) {
+        synchronized (mLockedKeys) {
+            return !mLockedKeys.containsKey(key) && CacheFile.deleteIfUnused(mCacheDirectory, key);
+        }
+    }
+
+    /**
+     * 超出配额或有条目过期时在后台清理，已有等待执行的清理时不重复提交
+     */
+    public void trimAsync() {
+        if (!needsTrim()) return;
+        if (!mTrimPending.compareAndSet(false, true)) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTrimPending.set(false);
+                trim();
+            }
+        });
+    }
+
+    private boolean needsTrim() {
+        return mIndex.getEarliestExpiry() < System.currentTimeMillis() || isOverQuota(getQuota());
+    }
+
+    private long getQuota() {
+        return mConfig.getQuota(mIndex.getTotalSize() - mIndex.getPinnedSize(), mCacheDirectory.getUsableSpace());
+    }
+
+    private boolean isOverQuota(long quota) {
+        return mIndex.getTotalSize() - mIndex.getPinnedSize() > quota
+                || mIndex.getCount() - mIndex.getPinnedCount() > mConfig.maxCacheCount;
+    }
+
+    /**
+     * 清理过期和超出配额的缓存。每次从索引中取最先清理的条目，正在使用或删除失败的条目跳过。
+     * 会等待索引加载完成，不能在主线程调用
+     */
+    public void trim() {
+        mIndex.awaitLoaded();
+        long now = System.currentTimeMillis();
+        Set<String> skipped = new HashSet<>();
+        CacheEntry entry;
+        while ((entry = mIndex.peekExpired(now, skipped)) != null) {
+            if (evict(entry, skipped)) L.d("evict cache " + entry.key + " (expired)");
+        }
+        //配额按清理前的大小计算，清理过程中可用空间的变化不影响结果
+        long quota = getQuota();
+        while (isOverQuota(quota) && (entry = mIndex.peekEviction(skipped)) != null) {
+            if (evict(entry, skipped)) L.d("evict cache " + entry.key);
+        }
+    }
+
+    /**
+     * 在索引的锁之外删除，避免和{@link CacheFile}的锁顺序相反
+     */
+    private boolean evict(CacheEntry entry, Set<String> skipped) {
+        if (!deleteIfUnused(entry.key)) {
+            skipped.add(entry.key);
+            return false;
+        }
+        mIndex.remove(entry.key);
+        return true;
+    }
+
+    public CacheIndex getIndex() {
+        return mIndex;
+    }
+
+    public CacheConfig getConfig() {
+        return mConfig;
+    }
+}
@@ -0,0 +1,18 @@
+package com.dueeeke.videoplayer.cache.evictor;
+
+import com.dueeeke.videoplayer.cache.CacheEntry;
+
+import java.util.Comparator;
+
+/**
+ * 缓存清理策略，决定超出配额时的清理顺序。
+ * 比较只能依赖条目自身的字段，不能依赖当前时间，否则顺序会随时间变化
+ */
+public interface EvictionPolicy extends Comparator<CacheEntry> {
+
+    /**
+     * @return 负数表示e1先于e2被清理
+     */
+    @Override
+    int compare(CacheEntry e1, CacheEntry e2);
+}
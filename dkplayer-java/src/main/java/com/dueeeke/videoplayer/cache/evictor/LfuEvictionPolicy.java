@@ -0,0 +1,15 @@
+package com.dueeeke.videoplayer.cache.evictor;
+
+import com.dueeeke.videoplayer.cache.CacheEntry;
+
+/**
+ * 最不经常使用，访问次数最少的先被清理，次数相同时最久未访问的先被清理
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    @Override
+    public int compare(CacheEntry e1, CacheEntry e2) {
+        if (e1.accessCount != e2.accessCount) return e1.accessCount < e2.accessCount ? -1 : 1;
+        return e1.lastAccessTime < e2.lastAccessTime ? -1 : e1.lastAccessTime == e2.lastAccessTime ? 0 : 1;
+    }
+}
@@ -0,0 +1,14 @@
+package com.dueeeke.videoplayer.cache.evictor;
+
+import com.dueeeke.videoplayer.cache.CacheEntry;
+
+/**
+ * 最近最少使用，最久未访问的先被清理
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    @Override
+    public int compare(CacheEntry e1, CacheEntry e2) {
+        return e1.lastAccessTime < e2.lastAccessTime ? -1 : e1.lastAccessTime == e2.lastAccessTime ? 0 : 1;
+    }
+}
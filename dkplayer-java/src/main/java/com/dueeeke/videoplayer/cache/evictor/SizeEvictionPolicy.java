@@ -0,0 +1,24 @@
+package com.dueeeke.videoplayer.cache.evictor;
+
+import com.dueeeke.videoplayer.cache.CacheEntry;
+
+/**
+ * 按大小加权，体积大且久未访问的先被清理，能在相同空间内保留更多视频。
+ * 每1MB按早访问一小时计算，大小相同时就是LRU
+ */
+public class SizeEvictionPolicy implements EvictionPolicy {
+
+    private static final long BYTES_PER_HOUR = 1024 * 1024;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Override
+    public int compare(CacheEntry e1, CacheEntry e2) {
+        long w1 = getWeightedAccessTime(e1);
+        long w2 = getWeightedAccessTime(e2);
+        return w1 < w2 ? -1 : w1 == w2 ? 0 : 1;
+    }
+
+    private static long getWeightedAccessTime(CacheEntry entry) {
+        return entry.lastAccessTime - entry.size / BYTES_PER_HOUR * HOUR;
+    }
+}
@@ -128,6 +128,19 @@ public abstract class AbstractPlayer {
      */
     public abstract long getTcpSpeed();
 
+    /**
+     * 播放器是否自己读取缓存，是则开启缓存时直接传入原地址，不经过本地代理
+     */
+    public boolean isCacheSupported() {
+        return false;
+    }
+
+    /**
+     * 开启或关闭缓存，在设置播放地址之前调用
+     */
+    public void setCacheEnabled(boolean enabled) {
+    }
+
     /**
      * 绑定VideoView
      */
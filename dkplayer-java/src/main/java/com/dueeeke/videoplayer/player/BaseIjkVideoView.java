@@ -12,8 +12,12 @@ import android.util.AttributeSet;
 import android.view.OrientationEventListener;
 import android.widget.FrameLayout;
 
-import com.danikula.videocache.CacheListener;
-import com.danikula.videocache.HttpProxyCacheServer;
+import com.dueeeke.videoplayer.cache.CacheDataSource;
+import com.dueeeke.videoplayer.cache.CacheProgress;
+import com.dueeeke.videoplayer.cache.CacheProxyServer;
+import com.dueeeke.videoplayer.cache.HlsCache;
+import com.dueeeke.videoplayer.cache.admission.Admission;
+import com.dueeeke.videoplayer.cache.admission.CacheRequest;
 import com.dueeeke.videoplayer.controller.BaseVideoController;
 import com.dueeeke.videoplayer.controller.MediaPlayerControl;
 import com.dueeeke.videoplayer.listener.OnVideoViewStateChangeListener;
@@ -22,6 +26,7 @@ import com.dueeeke.videoplayer.util.ProgressUtil;
 import com.dueeeke.videoplayer.util.PlayerUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -39,7 +44,7 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
     protected AbstractPlayer mMediaPlayer;//播放器
     @Nullable
     protected BaseVideoController mVideoController;//控制器
-    protected int mBufferedPercentage;//缓冲百分比
+    protected volatile int mBufferedPercentage;//缓存百分比，在主线程更新
     protected boolean mIsMute;//是否静音
 
     protected String mCurrentUrl;//当前播放视频的地址
@@ -75,7 +80,23 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
 
     protected boolean mIsLockFullScreen;//是否锁定屏幕
     protected PlayerConfig mPlayerConfig;//播放器配置
-    private HttpProxyCacheServer mCacheServer;
+    private CacheDataSource mCacheDataSource;
+    private String mLockedCacheUrl;
+    private HlsCache.Callback mHlsCallback;
+    private CacheRequest mCacheRequest;
+    private volatile CacheProgress mCacheProgress;
+    private String mProgressUrl;
+    /**
+     * 播放中定时保存进度，只写入内存，由ProgressStore合并写入磁盘，播放器数量不影响写入频率。
+     * 只在播放状态下执行，见{@link #updateProgressCheckpoint(int)}
+     */
+    private final Runnable mCheckpointProgress = new Runnable() {
+        @Override
+        public void run() {
+            ProgressUtil.checkpointProgress(mCurrentUrl, getCurrentPosition());
+            postDelayed(this, mPlayerConfig.progressCheckpointInterval);
+        }
+    };
 
     public static boolean IS_PLAY_ON_MOBILE_NETWORK = false;//记录是否在移动网络下播放视频
 
@@ -180,25 +201,62 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
 
     protected abstract void setPlayState(int playState);
 
+    /**
+     * 播放状态变化时调用，进入播放状态时开始定时保存进度，暂停、缓冲、出错等状态下停止
+     */
+    protected void updateProgressCheckpoint(int playState) {
+        removeCallbacks(mCheckpointProgress);
+        if (!mPlayerConfig.savingProgress || mPlayerConfig.progressCheckpointInterval <= 0) return;
+        if (playState == STATE_PLAYING || playState == STATE_BUFFERED) {
+            postDelayed(mCheckpointProgress, mPlayerConfig.progressCheckpointInterval);
+        }
+    }
+
     protected abstract void setPlayerState(int playerState);
 
     /**
      * 开始准备播放（直接播放）
      */
     protected void startPrepare(boolean needReset) {
+        //切换视频、清晰度或重试时不经过onPlayStopped，先取消上一个视频的缓存进度监听
+        unregisterCacheProgressListener();
         if (TextUtils.isEmpty(mCurrentUrl) && mAssetFileDescriptor == null) return;
         if (needReset) mMediaPlayer.reset();
+        releaseCache();
+        mBufferedPercentage = 0;
+        mCacheProgress = null;
+        if (mAssetFileDescriptor == null && mPlayerConfig.isCache && startPrepareWithCompletedFile()) return;
         if (mAssetFileDescriptor != null) {
             mMediaPlayer.setDataSource(mAssetFileDescriptor);
-        } else if (mPlayerConfig.isCache && !mCurrentUrl.startsWith("file://")) {
-            mCacheServer = getCacheServer();
-            String proxyPath = mCacheServer.getProxyUrl(mCurrentUrl);
-            mCacheServer.registerCacheListener(cacheListener, mCurrentUrl);
-            if (mCacheServer.isCached(mCurrentUrl)) {
-                mBufferedPercentage = 100;
+        } else if (mPlayerConfig.isCache && !mCurrentUrl.startsWith("file://") && isCacheAdmitted()) {
+            if (HlsCache.isHls(mCurrentUrl)) {
+                startPrepareHls();
+                return;
+            }
+            if (mMediaPlayer instanceof IjkPlayer) {
+                startPrepareWithDataSource((IjkPlayer) mMediaPlayer);
+                return;
+            }
+            VideoCacheManager.lockCache(getContext(), mCurrentUrl);
+            mLockedCacheUrl = mCurrentUrl;
+            registerCacheProgressListener();
+            if (mMediaPlayer.isCacheSupported()) {
+                //播放器直接读取缓存，不经过本地代理
+                if (VideoCacheManager.isCached(getContext(), mCurrentUrl)) {
+                    mBufferedPercentage = 100;
+                }
+                mMediaPlayer.setCacheEnabled(true);
+                mMediaPlayer.setDataSource(mCurrentUrl, mHeaders);
+            } else {
+                CacheProxyServer cacheServer = getCacheServer();
+                String proxyPath = cacheServer.getProxyUrl(mCurrentUrl);
+                if (cacheServer.isCached(mCurrentUrl)) {
+                    mBufferedPercentage = 100;
+                }
+                mMediaPlayer.setDataSource(proxyPath, mHeaders);
             }
-            mMediaPlayer.setDataSource(proxyPath, mHeaders);
         } else {
+            mMediaPlayer.setCacheEnabled(false);
             mMediaPlayer.setDataSource(mCurrentUrl, mHeaders);
         }
         mMediaPlayer.prepareAsync();
@@ -206,7 +264,101 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
         setPlayerState(isFullScreen() ? PLAYER_FULL_SCREEN : PLAYER_NORMAL);
     }
 
-    private HttpProxyCacheServer getCacheServer() {
+    /**
+     * 已完整缓存时直接播放本地文件，不经过本地代理和缓存数据源。
+     * IjkPlayer播放且内存缓存中有开头时改用缓存数据源，开头从内存读取，其余部分仍从该文件读取
+     *
+     * @return 未完整缓存时返回false
+     */
+    private boolean startPrepareWithCompletedFile() {
+        if (mCurrentUrl.startsWith("file://") || HlsCache.isHls(mCurrentUrl)) return false;
+        File file = VideoCacheManager.getCompletedCacheFile(getContext(), mCurrentUrl);
+        if (file == null) return false;
+        if (mMediaPlayer instanceof IjkPlayer && VideoCacheManager.isHeadInMemory(getContext(), mCurrentUrl)) {
+            startPrepareWithDataSource((IjkPlayer) mMediaPlayer);
+            return true;
+        }
+        //播放期间锁定，避免被清理
+        VideoCacheManager.lockCache(getContext(), mCurrentUrl);
+        mLockedCacheUrl = mCurrentUrl;
+        VideoCacheManager.recordCompletedFilePlay(mCurrentUrl);
+        mBufferedPercentage = 100;
+        mMediaPlayer.setCacheEnabled(false);
+        mMediaPlayer.setDataSource("file://" + file.getAbsolutePath(), null);
+        mMediaPlayer.prepareAsync();
+        setPlayState(STATE_PREPARING);
+        setPlayerState(isFullScreen() ? PLAYER_FULL_SCREEN : PLAYER_NORMAL);
+        return true;
+    }
+
+    /**
+     * 缓存准入判断，不缓存或当前播放方式不支持只缓存开头时直接播放
+     */
+    private boolean isCacheAdmitted() {
+        CacheRequest request = mCacheRequest != null && mCurrentUrl.equals(mCacheRequest.url)
+                ? mCacheRequest : new CacheRequest.Builder(mCurrentUrl).build();
+        Admission admission = VideoCacheManager.admit(getContext(), request);
+        if (admission.mode == Admission.MODE_BYPASS) return false;
+        //只缓存开头依赖边下边播数据源，HLS和本地代理不支持
+        return admission.mode == Admission.MODE_CACHE || !HlsCache.isHls(mCurrentUrl)
+                && (mMediaPlayer instanceof IjkPlayer || mMediaPlayer.isCacheSupported());
+    }
+
+    /**
+     * IjkPlayer直接从缓存数据源读取，不经过本地代理
+     */
+    private void startPrepareWithDataSource(IjkPlayer player) {
+        try {
+            mCacheDataSource = VideoCacheManager.newDataSource(getContext(), mCurrentUrl, mHeaders);
+        } catch (IOException e) {
+            onError();
+            return;
+        }
+        registerCacheProgressListener();
+        if (VideoCacheManager.isCached(getContext(), mCurrentUrl)) {
+            mBufferedPercentage = 100;
+        }
+        player.setDataSource(mCacheDataSource);
+        mMediaPlayer.prepareAsync();
+        setPlayState(STATE_PREPARING);
+        setPlayerState(isFullScreen() ? PLAYER_FULL_SCREEN : PLAYER_NORMAL);
+    }
+
+    /**
+     * HLS在后台改写m3u8，完成后播放本地m3u8，分片逐个缓存
+     */
+    private void startPrepareHls() {
+        final String url = mCurrentUrl;
+        mHlsCallback = new HlsCache.Callback() {
+            @Override
+            public void onPrepared(String path) {
+                //准备期间切换了视频或停止了播放
+                if (mHlsCallback != this || mMediaPlayer == null) return;
+                mHlsCallback = null;
+                VideoCacheManager.lockCache(getContext(), url);
+                mLockedCacheUrl = url;
+                mMediaPlayer.setDataSource(path, mHeaders);
+                mMediaPlayer.prepareAsync();
+            }
+        };
+        VideoCacheManager.prepareHls(getContext(), url, mHeaders, mHlsCallback);
+        setPlayState(STATE_PREPARING);
+        setPlayerState(isFullScreen() ? PLAYER_FULL_SCREEN : PLAYER_NORMAL);
+    }
+
+    private void registerCacheProgressListener() {
+        unregisterCacheProgressListener();
+        mProgressUrl = mCurrentUrl;
+        VideoCacheManager.registerCacheProgressListener(getContext(), mProgressUrl, mCacheProgressListener);
+    }
+
+    private void unregisterCacheProgressListener() {
+        if (mProgressUrl == null) return;
+        VideoCacheManager.unregisterCacheProgressListener(getContext(), mProgressUrl, mCacheProgressListener);
+        mProgressUrl = null;
+    }
+
+    private CacheProxyServer getCacheServer() {
         return VideoCacheManager.getProxy(getContext().getApplicationContext());
     }
 
@@ -234,6 +386,7 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
             mAudioFocusHelper = new AudioFocusHelper();
         }
         if (mPlayerConfig.savingProgress) {
+            ProgressUtil.init(getContext());
             mCurrentPosition = ProgressUtil.getSavedProgress(mCurrentUrl);
         }
         if (mPlayerConfig.mAutoRotate)
@@ -257,6 +410,8 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
     public void pause() {
         if (isPlaying()) {
             mMediaPlayer.pause();
+            //退到后台时通常会暂停，立即保存
+            if (mPlayerConfig.savingProgress) ProgressUtil.saveProgress(mCurrentUrl, getCurrentPosition());
             setPlayState(STATE_PAUSED);
             setKeepScreenOn(false);
             if (mAudioFocusHelper != null)
@@ -312,14 +467,33 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
     }
 
     private void onPlayStopped() {
+        mHlsCallback = null;
+        removeCallbacks(mCheckpointProgress);
         if (mVideoController != null) mVideoController.hideStatusView();
         mOrientationEventListener.disable();
-        if (mCacheServer != null)
-            mCacheServer.unregisterCacheListener(cacheListener);
+        unregisterCacheProgressListener();
+        releaseCache();
         mIsLockFullScreen = false;
         mCurrentPosition = 0;
     }
 
+    /**
+     * 解除上一个视频的缓存锁定并关闭缓存数据源，切换视频、重试和停止播放时调用
+     */
+    private void releaseCache() {
+        if (mLockedCacheUrl != null) {
+            VideoCacheManager.unlockCache(getContext(), mLockedCacheUrl);
+            mLockedCacheUrl = null;
+        }
+        if (mCacheDataSource != null) {
+            try {
+                mCacheDataSource.close();
+            } catch (IOException ignored) {
+            }
+            mCacheDataSource = null;
+        }
+    }
+
     /**
      * 监听播放状态变化
      */
@@ -401,11 +575,32 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
     }
 
     /**
-     * 获取当前缓冲百分比
+     * 获取当前缓冲百分比。开启缓存时取播放器缓冲和缓存中从当前位置开始连续缓存部分的较大值，
+     * 拖动进度后也能正确显示
      */
     @Override
     public int getBufferedPercentage() {
-        return mMediaPlayer != null ? mMediaPlayer.getBufferedPercentage() : 0;
+        if (mMediaPlayer == null) return 0;
+        int percent = mMediaPlayer.getBufferedPercentage();
+        CacheProgress progress = mCacheProgress;
+        long duration = getDuration();
+        if (progress != null && progress.length > 0 && duration > 0) {
+            //按码率均匀估算当前位置对应的字节位置
+            long bytePosition = (long) (progress.length * ((double) getCurrentPosition() / duration));
+            long cachedEnd = progress.completed ? progress.length : progress.getCachedEnd(bytePosition);
+            percent = Math.max(percent, (int) (cachedEnd * 100 / progress.length));
+        } else {
+            percent = Math.max(percent, mBufferedPercentage);
+        }
+        return percent;
+    }
+
+    /**
+     * 获取最近一次的缓存进度，包括已缓存的字节区间，未开启缓存时为null
+     */
+    @Nullable
+    public CacheProgress getCacheProgress() {
+        return mCacheProgress;
     }
 
     /**
@@ -445,12 +640,13 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
     }
 
     /**
-     * 缓存监听
+     * 缓存进度监听，在主线程合并回调
      */
-    private CacheListener cacheListener = new CacheListener() {
+    private CacheProgress.Listener mCacheProgressListener = new CacheProgress.Listener() {
         @Override
-        public void onCacheAvailable(File cacheFile, String url, int percentsAvailable) {
-            mBufferedPercentage = percentsAvailable;
+        public void onCacheProgress(CacheProgress progress) {
+            mCacheProgress = progress;
+            mBufferedPercentage = progress.getPercent();
         }
     };
 
@@ -470,6 +666,8 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
         setPlayState(STATE_PLAYBACK_COMPLETED);
         setKeepScreenOn(false);
         mCurrentPosition = 0;
+        //播放完成后下次从头播放
+        if (mPlayerConfig.savingProgress) ProgressUtil.clearSavedProgressByUrl(mCurrentUrl);
     }
 
     @Override
@@ -563,6 +761,14 @@ public abstract class BaseIjkVideoView extends FrameLayout implements MediaPlaye
         mHeaders = headers;
     }
 
+    /**
+     * 设置缓存准入信息，如来源标记、声明的时长，开启缓存时由缓存准入策略
+     * 决定完整缓存、只缓存开头还是不缓存。地址与当前视频不同时忽略
+     */
+    public void setCacheRequest(CacheRequest request) {
+        this.mCacheRequest = request;
+    }
+
     /**
      * 用于播放assets里面的视频文件
      */
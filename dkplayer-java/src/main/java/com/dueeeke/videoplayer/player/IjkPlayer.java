@@ -13,6 +13,7 @@ import java.util.Map;
 
 import tv.danmaku.ijk.media.player.IMediaPlayer;
 import tv.danmaku.ijk.media.player.IjkMediaPlayer;
+import tv.danmaku.ijk.media.player.misc.IMediaDataSource;
 
 public class IjkPlayer extends AbstractPlayer {
 
@@ -58,6 +59,12 @@ public class IjkPlayer extends AbstractPlayer {
                 RawDataSourceProvider rawDataSourceProvider = RawDataSourceProvider.create(mAppContext, uri);
                 mMediaPlayer.setDataSource(rawDataSourceProvider);
             } else {
+                if ("file".equals(uri.getScheme()) && path.endsWith(".m3u8")) {
+                    //缓存改写的本地m3u8，分片可能是本地文件或http地址
+                    mMediaPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_FORMAT, "protocol_whitelist",
+                            "async,cache,crypto,file,http,https,ijkhttphook,ijkinject,ijklivehook,ijklongurl,ijksegment,ijktcphook,pipe,rtp,tcp,tls,udp,ijkurlhook,data");
+                    mMediaPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_FORMAT, "allowed_extensions", "ALL");
+                }
                 mMediaPlayer.setDataSource(mAppContext, uri, headers);
             }
 
@@ -75,6 +82,17 @@ public class IjkPlayer extends AbstractPlayer {
         }
     }
 
+    /**
+     * 设置自定义数据源，如边下边播缓存
+     */
+    public void setDataSource(IMediaDataSource dataSource) {
+        try {
+            mMediaPlayer.setDataSource(dataSource);
+        } catch (Exception e) {
+            mPlayerEventListener.onError();
+        }
+    }
+
     @Override
     public void pause() {
         try {
@@ -106,6 +106,7 @@ public class IjkVideoView extends BaseIjkVideoView {
     @Override
     protected void setPlayState(int playState) {
         mCurrentPlayState = playState;
+        updateProgressCheckpoint(playState);
         if (mVideoController != null)
             mVideoController.setPlayState(playState);
         if (mOnVideoViewStateChangeListeners != null) {
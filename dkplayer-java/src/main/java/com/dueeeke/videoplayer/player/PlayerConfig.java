@@ -14,6 +14,7 @@ public class PlayerConfig {
     public boolean usingSurfaceView;//是否使用TextureView
     public boolean enableMediaCodec;//是否启用硬解码
     public boolean savingProgress;//是否保存进度
+    public long progressCheckpointInterval;//播放中定时保存进度的间隔，单位毫秒，0表示只在暂停和停止时保存
     public AbstractPlayer mAbstractPlayer = null;//自定义播放核心
     public boolean disableAudioFocus;//关闭AudioFocus监听
 
@@ -27,11 +28,12 @@ public class PlayerConfig {
         this.enableMediaCodec = origin.enableMediaCodec;
         this.mAbstractPlayer = origin.mAbstractPlayer;
         this.savingProgress = origin.savingProgress;
+        this.progressCheckpointInterval = origin.progressCheckpointInterval;
         this.disableAudioFocus = origin.disableAudioFocus;
     }
 
     private PlayerConfig() {
-
+        progressCheckpointInterval = 5000;
     }
 
     public static class Builder {
@@ -99,13 +101,24 @@ public class PlayerConfig {
         }
 
         /**
-         * 保存播放进度
+         * 保存播放进度，进度持久化保存，重启应用后也会从上次的位置继续播放
          */
         public Builder savingProgress() {
             target.savingProgress = true;
             return this;
         }
 
+        /**
+         * 保存播放进度，并设置播放中定时保存的间隔，默认5秒，应用崩溃或被杀死时最多丢失一个间隔的进度
+         *
+         * @param checkpointInterval 单位毫秒，0表示只在暂停和停止时保存
+         */
+        public Builder savingProgress(long checkpointInterval) {
+            target.savingProgress = true;
+            target.progressCheckpointInterval = checkpointInterval;
+            return this;
+        }
+
         /**
          * 关闭AudioFocus监听
          */
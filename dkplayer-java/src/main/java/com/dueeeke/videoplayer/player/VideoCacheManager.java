@@ -1,55 +1,481 @@
 package com.dueeeke.videoplayer.player;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
-import com.danikula.videocache.HttpProxyCacheServer;
-import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.dueeeke.videoplayer.cache.CacheBundle;
+import com.dueeeke.videoplayer.cache.CacheCleaner;
+import com.dueeeke.videoplayer.cache.CacheConfig;
+import com.dueeeke.videoplayer.cache.CacheDataSource;
+import com.dueeeke.videoplayer.cache.CacheFile;
+import com.dueeeke.videoplayer.cache.CacheIndex;
+import com.dueeeke.videoplayer.cache.CacheMetrics;
+import com.dueeeke.videoplayer.cache.CacheProgress;
+import com.dueeeke.videoplayer.cache.CacheProgressDispatcher;
+import com.dueeeke.videoplayer.cache.CacheProxyServer;
+import com.dueeeke.videoplayer.cache.CacheRevalidator;
+import com.dueeeke.videoplayer.cache.CacheStats;
+import com.dueeeke.videoplayer.cache.CacheTask;
+import com.dueeeke.videoplayer.cache.DownloadManager;
+import com.dueeeke.videoplayer.cache.HlsCache;
+import com.dueeeke.videoplayer.cache.MemoryCache;
+import com.dueeeke.videoplayer.cache.OriginFetcher;
+import com.dueeeke.videoplayer.cache.Preloader;
+import com.dueeeke.videoplayer.cache.admission.Admission;
+import com.dueeeke.videoplayer.cache.admission.CacheRequest;
+import com.dueeeke.videoplayer.cache.evictor.CacheEvictor;
 import com.dueeeke.videoplayer.util.StorageUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 
 public class VideoCacheManager {
 
-    private static HttpProxyCacheServer sharedProxy;
+    private static CacheProxyServer sharedProxy;
+    private static Preloader sPreloader;
+    private static OriginFetcher sFetcher;
+    private static CacheProgressDispatcher sProgressDispatcher;
+    private static CacheConfig sCacheConfig;
+    private static CacheEvictor sEvictor;
+    private static HlsCache sHlsCache;
+    private static MemoryCache sMemoryCache;
+    private static CacheCleaner sCacheCleaner;
+    private static DownloadManager sDownloadManager;
+    private static CacheBundle sCacheBundle;
+    private static CacheRevalidator sRevalidator;
+    private static final CacheMetrics sMetrics = new CacheMetrics();
+    private static volatile CacheMetrics.Listener sMetricsListener;
+    private static Handler sMainHandler;
+
+    /**
+     * 默认预加载大小，约为普通短视频的前几秒
+     */
+    public static final long DEFAULT_PRELOAD_SIZE = 1024 * 1024;
+
+    /**
+     * HLS默认预加载的分片数
+     */
+    public static final int DEFAULT_PRELOAD_SEGMENTS = 2;
 
     private VideoCacheManager() {
     }
 
-    public static HttpProxyCacheServer getProxy(Context context) {
+    public static synchronized CacheProxyServer getProxy(Context context) {
         return sharedProxy == null ? (sharedProxy = newProxy(context)) : sharedProxy;
     }
 
-    private static HttpProxyCacheServer newProxy(Context context) {
-        return new HttpProxyCacheServer.Builder(context)
-                .maxCacheSize(1024 * 1024 * 1024)       // 1 Gb for cache
-                .build();
+    private static CacheProxyServer newProxy(Context context) {
+        File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+        CacheProxyServer proxy = new CacheProxyServer(cacheDirectory, getCacheConfig().mKeyGenerator,
+                getEvictor(context), getFetcher(context));
+        proxy.setRevalidator(getRevalidator(context));
+        return proxy;
+    }
+
+    /**
+     * 源站下载，边下边播、本地代理和预加载共用，同一个视频同时只下载一次
+     */
+    private static synchronized OriginFetcher getFetcher(Context context) {
+        if (sFetcher == null) {
+            sFetcher = new OriginFetcher();
+            sFetcher.setMemoryCache(getMemoryCache(context));
+            sFetcher.setMaxConnectionsPerHost(getCacheConfig().maxConnectionsPerHost);
+        }
+        return sFetcher;
+    }
+
+    /**
+     * 设置缓存配置，需在使用缓存之前调用，如Application的onCreate中
+     */
+    public static synchronized void setCacheConfig(CacheConfig config) {
+        sCacheConfig = config;
+    }
+
+    private static synchronized CacheConfig getCacheConfig() {
+        if (sCacheConfig == null) sCacheConfig = new CacheConfig.Builder().build();
+        return sCacheConfig;
+    }
+
+    private static synchronized CacheEvictor getEvictor(Context context) {
+        if (sEvictor == null) {
+            getCacheConfig();
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            sEvictor = new CacheEvictor(cacheDirectory, sCacheConfig,
+                    new CacheIndex(cacheDirectory, sCacheConfig.mEvictionPolicy, sCacheConfig.ttl));
+            CacheFile.setOnCacheChangedListener(sEvictor);
+            CacheFile.setWriteOptions(sCacheConfig.writeBufferSize, sCacheConfig.syncBytes, sCacheConfig.fsync);
+            CacheFile.setCipher(sCacheConfig.mCipher);
+        }
+        return sEvictor;
+    }
+
+    private static synchronized CacheProgressDispatcher getProgressDispatcher(Context context) {
+        if (sProgressDispatcher == null) {
+            sProgressDispatcher = new CacheProgressDispatcher(getFetcher(context), getCacheConfig().progressInterval);
+        }
+        return sProgressDispatcher;
+    }
+
+    /**
+     * 监听url的缓存进度，包括已缓存的字节区间，在主线程合并回调，
+     * 间隔由{@link CacheConfig.Builder#setProgressInterval}设置
+     */
+    public static void registerCacheProgressListener(Context context, String url, CacheProgress.Listener listener) {
+        getProgressDispatcher(context).register(getCacheFile(context, url).getName(), listener);
+    }
+
+    public static void unregisterCacheProgressListener(Context context, String url, CacheProgress.Listener listener) {
+        getProgressDispatcher(context).unregister(getCacheFile(context, url).getName(), listener);
+    }
+
+    /**
+     * 锁定url对应的缓存，锁定期间不会被清理，用于通过本地代理播放的视频
+     */
+    public static void lockCache(Context context, String url) {
+        String key = getCacheFile(context, url).getName();
+        getEvictor(context).lock(key);
+        getEvictor(context).touch(key);
+        if (HlsCache.isHls(url)) {
+            for (String segmentKey : getHlsCache(context).lockSegmentKeys(url)) {
+                getEvictor(context).lock(segmentKey);
+            }
+        }
+    }
+
+    /**
+     * 解除锁定
+     */
+    public static void unlockCache(Context context, String url) {
+        getEvictor(context).unlock(getCacheFile(context, url).getName());
+        if (HlsCache.isHls(url)) {
+            for (String segmentKey : getHlsCache(context).unlockSegmentKeys(url)) {
+                getEvictor(context).unlock(segmentKey);
+            }
+        }
+    }
+
+    /**
+     * 创建边下边播数据源，供IjkPlayer直接读取，不经过本地代理
+     */
+    public static CacheDataSource newDataSource(Context context, String url, Map<String, String> headers) throws IOException {
+        File cacheFile = getCacheFile(context, url);
+        //预加载和播放共用下载，不取消预加载，播放器直接接上正在进行的下载
+        CacheDataSource dataSource = new CacheDataSource(url, headers, cacheFile, getFetcher(context));
+        long cacheLimit = getEvictor(context).getIndex().getCacheLimit(cacheFile.getName());
+        if (cacheLimit > 0) dataSource.setCacheLimit(cacheLimit);
+        dataSource.setMemoryCache(getMemoryCache(context));
+        dataSource.setRevalidator(getRevalidator(context));
+        dataSource.setOnSessionFinishedListener(sSessionFinishedListener);
+        getEvictor(context).touch(cacheFile.getName());
+        return dataSource;
+    }
+
+    /**
+     * 根据{@link CacheConfig.Builder#setAdmissionPolicy}判断视频的缓存方式，并记录结果：
+     * 只缓存开头的字节数和单独设置的有效期记录在索引中，之后创建的数据源只缓存开头
+     */
+    public static Admission admit(Context context, CacheRequest request) {
+        CacheConfig config = getCacheConfig();
+        Admission admission = config.mAdmissionPolicy == null ? Admission.cache() : config.mAdmissionPolicy.admit(request);
+        String key = getCacheKey(request.url);
+        CacheIndex index = getEvictor(context).getIndex();
+        index.setCacheLimit(key, admission.mode == Admission.MODE_HEAD_ONLY ? admission.headSize : 0);
+        if (admission.ttl > 0) index.setTtl(key, admission.ttl);
+        return admission;
+    }
+
+    /**
+     * 获取内存缓存，关闭时返回null
+     */
+    private static synchronized MemoryCache getMemoryCache(Context context) {
+        if (sMemoryCache == null) {
+            CacheConfig config = getCacheConfig();
+            long size = config.memoryCacheSize < 0
+                    ? MemoryCache.getDefaultSize(context.getApplicationContext()) : config.memoryCacheSize;
+            if (size <= 0) return null;
+            sMemoryCache = new MemoryCache(size, config.memoryHeadSize);
+        }
+        return sMemoryCache;
+    }
+
+    /**
+     * 系统内存不足时释放内存缓存，在Application或Activity的onTrimMemory中调用
+     */
+    public static synchronized void onTrimMemory(int level) {
+        if (sMemoryCache != null) sMemoryCache.onTrimMemory(level);
+    }
+
+    private static final CacheDataSource.OnSessionFinishedListener sSessionFinishedListener = new CacheDataSource.OnSessionFinishedListener() {
+        @Override
+        public void onSessionFinished(final String url, final CacheMetrics session) {
+            sMetrics.add(session);
+            final CacheMetrics.Listener listener = sMetricsListener;
+            if (listener == null) return;
+            final CacheMetrics total = sMetrics.copy();
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSessionFinished(url, session, total);
+                }
+            });
+        }
+    };
+
+    private static synchronized Handler getMainHandler() {
+        return sMainHandler == null ? (sMainHandler = new Handler(Looper.getMainLooper())) : sMainHandler;
+    }
+
+    /**
+     * 设置缓存命中统计监听，每次播放结束时回调
+     */
+    public static void setCacheMetricsListener(CacheMetrics.Listener listener) {
+        sMetricsListener = listener;
+    }
+
+    /**
+     * 获取累计的缓存命中统计，包括内存、磁盘、网络读取的字节数和等待网络的时间。
+     * 只统计边下边播数据源，经过本地代理的播放不在其中
+     */
+    public static CacheMetrics getCacheMetrics() {
+        return sMetrics.copy();
+    }
+
+    /**
+     * 重置累计的缓存命中统计
+     */
+    public static void resetCacheMetrics() {
+        sMetrics.reset();
+    }
+
+    private static synchronized Preloader getPreloader(Context context) {
+        return sPreloader == null ? (sPreloader = new Preloader(getEvictor(context), getFetcher(context))) : sPreloader;
+    }
+
+    private static synchronized HlsCache getHlsCache(Context context) {
+        if (sHlsCache == null) {
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            sHlsCache = new HlsCache(cacheDirectory, getCacheConfig().mKeyGenerator, getProxy(context), getPreloader(context));
+        }
+        return sHlsCache;
+    }
+
+    /**
+     * 准备HLS缓存，在后台下载并改写m3u8，完成后在主线程回调可直接播放的本地m3u8地址。
+     * 每个分片作为独立的缓存条目，已缓存的分片直接从本地读取
+     */
+    public static void prepareHls(Context context, String url, Map<String, String> headers, HlsCache.Callback callback) {
+        getHlsCache(context).prepare(url, headers, callback);
+    }
+
+    /**
+     * 预加载url对应视频的开头部分，适用于列表和短视频场景提前加载下一条
+     */
+    public static void preload(Context context, String url) {
+        preload(context, url, DEFAULT_PRELOAD_SIZE);
+    }
+
+    /**
+     * 预加载url对应视频的开头部分，HLS预加载前{@link #DEFAULT_PRELOAD_SEGMENTS}个分片
+     *
+     * @param size 预加载的字节数，对HLS无效
+     */
+    public static void preload(Context context, String url, long size) {
+        preload(context, new CacheRequest.Builder(url).build(), size);
+    }
+
+    /**
+     * 预加载，先经过缓存准入判断，不缓存的视频不预加载，只缓存开头的视频最多预加载开头部分
+     */
+    public static void preload(Context context, CacheRequest request, long size) {
+        String url = request.url;
+        if (url == null || !url.startsWith("http")) return;
+        Admission admission = admit(context, request);
+        if (admission.mode == Admission.MODE_BYPASS) return;
+        if (admission.mode == Admission.MODE_HEAD_ONLY) size = Math.min(size, admission.headSize);
+        if (HlsCache.isHls(url)) {
+            getHlsCache(context).preload(url, DEFAULT_PRELOAD_SEGMENTS);
+            return;
+        }
+        getPreloader(context).preload(url, getCacheFile(context, url), size);
+    }
+
+    /**
+     * 取消url对应的预加载
+     */
+    public static void cancelPreload(String url) {
+        if (sPreloader != null) sPreloader.cancel(getCacheKey(url));
+    }
+
+    /**
+     * 取消所有预加载
+     */
+    public static void cancelAllPreload() {
+        if (sPreloader != null) sPreloader.cancelAll();
+    }
+
+    /**
+     * url对应的视频是否已完整缓存，缓存索引加载完成前返回false
+     */
+    public static boolean isCached(Context context, String url) {
+        return getEvictor(context).getIndex().isCompleted(getCacheFile(context, url).getName());
     }
 
+    /**
+     * 获取url对应的完整缓存文件，未完整缓存、缓存加密或需要重新验证时返回null，可直接交给播放器播放
+     */
+    public static File getCompletedCacheFile(Context context, String url) {
+        getEvictor(context);
+        if (CacheFile.isEncryptionEnabled()) return null;
+        File file = getCacheFile(context, url);
+        if (!file.exists() || getRevalidator(context).needsRevalidation(file.getName())) return null;
+        return file;
+    }
+
+    /**
+     * 内存缓存中是否有url对应视频的开头
+     */
+    static boolean isHeadInMemory(Context context, String url) {
+        MemoryCache memoryCache = getMemoryCache(context);
+        return memoryCache != null && memoryCache.contains(getCacheFile(context, url).getName());
+    }
+
+    /**
+     * 记录一次直接播放本地缓存文件，计为完全命中，不经过数据源所以不统计字节数
+     */
+    static void recordCompletedFilePlay(String url) {
+        CacheMetrics session = new CacheMetrics();
+        session.sessions = 1;
+        session.hits = 1;
+        sSessionFinishedListener.onSessionFinished(url, session);
+    }
+
+    /**
+     * 获取缓存占用的总字节数
+     */
+    public static long getCacheSize(Context context) {
+        return getEvictor(context).getIndex().getTotalSize();
+    }
+
+    /**
+     * 获取缓存统计，包括总大小、条目数、完整和部分缓存的数量，只读取内存中的索引
+     */
+    public static CacheStats getCacheStats(Context context) {
+        return getEvictor(context).getIndex().getStats();
+    }
 
     /**
-     * 删除所有缓存文件
+     * 获取url对应的缓存key，由{@link CacheConfig.Builder#setKeyGenerator}决定
+     */
+    public static String getCacheKey(String url) {
+        return getCacheConfig().mKeyGenerator.generate(url);
+    }
+
+    private static File getCacheFile(Context context, String url) {
+        return new File(StorageUtil.getIndividualCacheDirectory(context.getApplicationContext()), getCacheKey(url));
+    }
+
+
+    /**
+     * 删除所有缓存文件，离线下载的缓存保留
      * @return 返回缓存是否删除成功
      */
     public static boolean clearAllCache(Context context) {
-        File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context);
-        return StorageUtil.deleteFiles(cacheDirectory);
+        return getCacheCleaner(context).clearAllNow();
     }
 
     /**
-     * 删除url对应默认缓存文件
+     * 删除url对应默认缓存文件，正在播放或下载的缓存不会删除
      * @return 返回缓存是否删除成功
      */
     public static boolean clearDefaultCache(Context context, String url) {
-        Md5FileNameGenerator md5FileNameGenerator = new Md5FileNameGenerator();
-        String name = md5FileNameGenerator.generate(url);
-        String pathTmp = StorageUtil.getIndividualCacheDirectory
-                (context.getApplicationContext()).getAbsolutePath()
-                + File.separator + name + ".download";
-        String path = StorageUtil.getIndividualCacheDirectory
-                (context.getApplicationContext()).getAbsolutePath()
-                + File.separator + name;
-        return StorageUtil.deleteFile(pathTmp) &&
-                StorageUtil.deleteFile(path);
-
-    }
-}
\ No newline at end of file
+        return getCacheCleaner(context).clearNow(getCacheKey(url));
+    }
+
+    /**
+     * 离线下载管理，下载的视频不会被缓存清理删除
+     */
+    public static synchronized DownloadManager getDownloadManager(Context context) {
+        if (sDownloadManager == null) {
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            sDownloadManager = new DownloadManager(context, cacheDirectory, getCacheConfig().mKeyGenerator,
+                    getEvictor(context).getIndex(), getFetcher(context), getCacheConfig().maxParallelDownloads);
+        }
+        return sDownloadManager;
+    }
+
+    private static synchronized CacheCleaner getCacheCleaner(Context context) {
+        if (sCacheCleaner == null) {
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            sCacheCleaner = new CacheCleaner(cacheDirectory, getEvictor(context), getMemoryCache(context));
+        }
+        return sCacheCleaner;
+    }
+
+    /**
+     * 在后台删除所有缓存，进度和结果在主线程回调
+     *
+     * @param listener 可以为null
+     * @return 可用于取消删除
+     */
+    public static CacheTask clearAllCacheAsync(Context context, CacheTask.Listener listener) {
+        return getCacheCleaner(context).clearAll(listener);
+    }
+
+    /**
+     * 在后台删除url对应的缓存，结果在主线程回调
+     *
+     * @param listener 可以为null
+     */
+    public static CacheTask clearDefaultCacheAsync(Context context, String url, CacheTask.Listener listener) {
+        return getCacheCleaner(context).clear(getCacheKey(url), listener);
+    }
+
+    private static synchronized CacheBundle getCacheBundle(Context context) {
+        if (sCacheBundle == null) {
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            sCacheBundle = new CacheBundle(cacheDirectory, getEvictor(context).getIndex(), getMemoryCache(context));
+        }
+        return sCacheBundle;
+    }
+
+    /**
+     * 在后台导入缓存包，导入的视频被固定，不会被缓存清理删除，进度和结果在主线程回调
+     *
+     * @param bundleDirectory 缓存包目录，由{@link #exportCacheBundle}生成
+     * @param move            是否移动缓存包中的文件，和缓存目录在同一分区时几乎不耗时，否则复制
+     * @param listener        可以为null
+     */
+    public static CacheTask importCacheBundle(Context context, File bundleDirectory, boolean move,
+                                              CacheTask.Listener listener) {
+        return getCacheBundle(context).importFrom(bundleDirectory, move, listener);
+    }
+
+    /**
+     * 在后台把所有完整缓存导出为缓存包，进度和结果在主线程回调
+     *
+     * @param listener 可以为null
+     */
+    public static CacheTask exportCacheBundle(Context context, File bundleDirectory, CacheTask.Listener listener) {
+        return getCacheBundle(context).exportTo(bundleDirectory, listener);
+    }
+
+    private static synchronized CacheRevalidator getRevalidator(Context context) {
+        if (sRevalidator == null) {
+            File cacheDirectory = StorageUtil.getIndividualCacheDirectory(context.getApplicationContext());
+            CacheConfig config = getCacheConfig();
+            sRevalidator = new CacheRevalidator(cacheDirectory, getEvictor(context).getIndex(), getMemoryCache(context),
+                    config.revalidatePolicy, config.revalidateInterval);
+        }
+        return sRevalidator;
+    }
+
+    /**
+     * 在后台向源站验证url对应的完整缓存，不受{@link CacheConfig.Builder#setRevalidatePolicy}限制，
+     * 内容变化时丢弃缓存，用于已知源站内容更新的场景
+     */
+    public static void revalidate(Context context, String url, Map<String, String> headers) {
+        getRevalidator(context).revalidateAsync(url, headers, getCacheFile(context, url).getName(), null);
+    }
+}
@@ -0,0 +1,487 @@
+package com.dueeeke.videoplayer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 播放进度存储，按完整url查找，不会因为哈希冲突返回其他视频的进度。
+ * 条目数有上限，超出时删除最久未使用的条目。进度保存在数组中，不装箱。
+ * 修改追加写入日志文件，在后台线程写入和压缩，重启应用后可以继续播放。
+ * 播放中的定时保存通过{@link #checkpoint}合并，每个间隔最多批量写入一次，和播放器数量无关。
+ */
+public class ProgressStore {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final int JOURNAL_MAGIC = 0x444b5031;//DKP1
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MIN_COMPACT_RECORDS = 200;
+    private static final int NONE = -1;
+    /**
+     * 定时保存的合并间隔，期间的多次保存只写入最后的进度
+     */
+    private static final long FLUSH_INTERVAL = 3000;
+
+    private final File mJournalFile;
+    private final int mMaxEntries;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    //条目池，用下标代替对象引用
+    private final String[] mKeys;
+    private final long[] mHashes;
+    private final long[] mPositions;
+    private final int[] mBucketNext;//同一个桶中的下一个条目
+    private final int[] mLruPrev;
+    private final int[] mLruNext;
+    private final int[] mBuckets;
+    private final boolean[] mDirty;//已修改但还未写入日志
+    private int mDirtyCount;
+    private boolean mFlushScheduled;
+    private int mLruHead = NONE;//最久未使用
+    private int mLruTail = NONE;//最近使用
+    private int mFree;//空闲条目链表，借用mBucketNext
+    private int mSize;
+
+    private DataOutputStream mJournal;//只在写入线程访问
+    private int mJournalRecords;
+
+    /**
+     * 在后台加载日志，加载完成前的读写会等待加载
+     *
+     * @param journalFile 日志文件，为null时只保存在内存中
+     */
+    public ProgressStore(File journalFile, int maxEntries) {
+        this(journalFile, maxEntries, null);
+    }
+
+    /**
+     * @param initial 加载日志后合并的进度，比日志中的新，用于从内存存储切换到持久化存储，可以为null
+     */
+    public ProgressStore(File journalFile, int maxEntries, ProgressStore initial) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+        mJournalFile = journalFile;
+        mMaxEntries = maxEntries;
+        mKeys = new String[maxEntries];
+        mHashes = new long[maxEntries];
+        mPositions = new long[maxEntries];
+        mBucketNext = new int[maxEntries];
+        mLruPrev = new int[maxEntries];
+        mLruNext = new int[maxEntries];
+        mDirty = new boolean[maxEntries];
+        int buckets = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        mBuckets = new int[buckets];
+        clearTable();
+        //按最近使用的顺序取出，合并后保持原来的顺序
+        final String[] initialKeys;
+        final long[] initialPositions;
+        if (initial == null) {
+            initialKeys = new String[0];
+            initialPositions = new long[0];
+        } else {
+            initial.awaitLoaded();
+            synchronized (initial) {
+                initialKeys = new String[initial.mSize];
+                initialPositions = new long[initial.mSize];
+                int n = 0;
+                for (int i = initial.mLruHead; i != NONE; i = initial.mLruNext[i]) {
+                    initialKeys[n] = initial.mKeys[i];
+                    initialPositions[n++] = initial.mPositions[i];
+                }
+            }
+        }
+        if (journalFile == null) {
+            for (int i = 0; i < initialKeys.length; i++) {
+                putInternal(initialKeys[i], initialPositions[i]);
+            }
+            mLoaded.countDown();
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ProgressStore.this) {
+                    readJournal();
+                    for (int i = 0; i < initialKeys.length; i++) {
+                        putInternal(initialKeys[i], initialPositions[i]);
+                    }
+                    mLoaded.countDown();
+                }
+                //重写的快照包含合并的进度
+                rewriteJournal();
+            }
+        });
+    }
+
+    /**
+     * 是否写入日志文件
+     */
+    public boolean isPersistent() {
+        return mJournalFile != null;
+    }
+
+    public long get(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            int index = find(key, hash(key));
+            if (index == NONE) return 0;
+            moveToTail(index);
+            return mPositions[index];
+        }
+    }
+
+    /**
+     * 保存进度并立即在后台写入日志，用于停止播放等不频繁的保存
+     */
+    public void put(String key, long position) {
+        awaitLoaded();
+        synchronized (this) {
+            clearDirty(putInternal(key, position));
+        }
+        append(OP_PUT, key, position);
+    }
+
+    /**
+     * 保存进度，延迟批量写入日志，用于播放中的定时保存。同一个视频在一个间隔内多次保存只写入一次
+     */
+    public void checkpoint(String key, long position) {
+        awaitLoaded();
+        boolean schedule;
+        synchronized (this) {
+            int index = putInternal(key, position);
+            if (mJournalFile == null) return;
+            if (!mDirty[index]) {
+                mDirty[index] = true;
+                mDirtyCount++;
+            }
+            schedule = !mFlushScheduled;
+            mFlushScheduled = true;
+        }
+        if (schedule) mExecutor.schedule(mFlush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 立即在后台写入还未写入的进度，用于退到后台或内存不足时
+     */
+    public void flush() {
+        if (mJournalFile == null) return;
+        mExecutor.execute(mFlush);
+    }
+
+    public void remove(String key) {
+        awaitLoaded();
+        boolean removed;
+        synchronized (this) {
+            removed = removeInternal(key);
+        }
+        if (removed) append(OP_REMOVE, key, 0);
+    }
+
+    public void clear() {
+        awaitLoaded();
+        synchronized (this) {
+            clearTable();
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                rewriteJournal();
+            }
+        });
+    }
+
+    public int size() {
+        awaitLoaded();
+        synchronized (this) {
+            return mSize;
+        }
+    }
+
+    private void awaitLoaded() {
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 64位FNV-1a，只用于选桶和快速比较，命中后仍比较完整的key
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int bucket(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (mBuckets.length - 1);
+    }
+
+    private int find(String key, long hash) {
+        for (int i = mBuckets[bucket(hash)]; i != NONE; i = mBucketNext[i]) {
+            if (mHashes[i] == hash && mKeys[i].equals(key)) return i;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return 条目的下标
+     */
+    private int putInternal(String key, long position) {
+        long hash = hash(key);
+        int index = find(key, hash);
+        if (index == NONE) {
+            //已满时淘汰最久未使用的条目
+            if (mFree == NONE) removeInternal(mKeys[mLruHead]);
+            index = mFree;
+            mFree = mBucketNext[index];
+            int bucket = bucket(hash);
+            mKeys[index] = key;
+            mHashes[index] = hash;
+            mBucketNext[index] = mBuckets[bucket];
+            mBuckets[bucket] = index;
+            linkTail(index);
+            mSize++;
+        } else {
+            moveToTail(index);
+        }
+        mPositions[index] = position;
+        return index;
+    }
+
+    private boolean removeInternal(String key) {
+        long hash = hash(key);
+        int bucket = bucket(hash);
+        int previous = NONE;
+        for (int i = mBuckets[bucket]; i != NONE; previous = i, i = mBucketNext[i]) {
+            if (mHashes[i] != hash || !mKeys[i].equals(key)) continue;
+            if (previous == NONE) {
+                mBuckets[bucket] = mBucketNext[i];
+            } else {
+                mBucketNext[previous] = mBucketNext[i];
+            }
+            unlink(i);
+            clearDirty(i);
+            mKeys[i] = null;
+            mBucketNext[i] = mFree;
+            mFree = i;
+            mSize--;
+            return true;
+        }
+        return false;
+    }
+
+    private void clearTable() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = NONE;
+        }
+        for (int i = 0; i < mMaxEntries; i++) {
+            mKeys[i] = null;
+            mDirty[i] = false;
+            mBucketNext[i] = i + 1 < mMaxEntries ? i + 1 : NONE;
+        }
+        mDirtyCount = 0;
+        mFree = 0;
+        mLruHead = NONE;
+        mLruTail = NONE;
+        mSize = 0;
+    }
+
+    private void clearDirty(int index) {
+        if (!mDirty[index]) return;
+        mDirty[index] = false;
+        mDirtyCount--;
+    }
+
+    private void linkTail(int index) {
+        mLruPrev[index] = mLruTail;
+        mLruNext[index] = NONE;
+        if (mLruTail == NONE) {
+            mLruHead = index;
+        } else {
+            mLruNext[mLruTail] = index;
+        }
+        mLruTail = index;
+    }
+
+    private void unlink(int index) {
+        int prev = mLruPrev[index];
+        int next = mLruNext[index];
+        if (prev == NONE) {
+            mLruHead = next;
+        } else {
+            mLruNext[prev] = next;
+        }
+        if (next == NONE) {
+            mLruTail = prev;
+        } else {
+            mLruPrev[next] = prev;
+        }
+    }
+
+    private void moveToTail(int index) {
+        if (index == mLruTail) return;
+        unlink(index);
+        linkTail(index);
+    }
+
+    /**
+     * 按记录顺序重放日志，最后写入的条目就是最近使用的
+     */
+    private void readJournal() {
+        if (!mJournalFile.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            if (in.readInt() != JOURNAL_MAGIC) return;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (op == OP_PUT) {
+                    putInternal(key, in.readLong());
+                } else if (op == OP_REMOVE) {
+                    removeInternal(key);
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            //进程被杀时最后一条记录可能不完整，之前的记录仍然有效
+            L.e("Progress journal truncated: " + e.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void append(final byte op, final String key, final long position) {
+        if (mJournalFile == null) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) return;
+                try {
+                    writeRecord(op, key, position);
+                    mJournal.flush();
+                } catch (IOException e) {
+                    L.e("Error appending progress journal: " + e.getMessage());
+                }
+                onRecordsAppended(1);
+            }
+        });
+    }
+
+    /**
+     * 在写入线程取出所有未写入的条目，一次写入
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            String[] keys;
+            long[] positions;
+            synchronized (ProgressStore.this) {
+                mFlushScheduled = false;
+                if (mDirtyCount == 0) return;
+                keys = new String[mDirtyCount];
+                positions = new long[mDirtyCount];
+                int count = 0;
+                for (int i = 0; i < mMaxEntries && count < keys.length; i++) {
+                    if (!mDirty[i]) continue;
+                    mDirty[i] = false;
+                    keys[count] = mKeys[i];
+                    positions[count] = mPositions[i];
+                    count++;
+                }
+                mDirtyCount = 0;
+            }
+            if (mJournal == null) return;
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    writeRecord(OP_PUT, keys[i], positions[i]);
+                }
+                mJournal.flush();
+            } catch (IOException e) {
+                L.e("Error appending progress journal: " + e.getMessage());
+            }
+            onRecordsAppended(keys.length);
+        }
+    };
+
+    private void writeRecord(byte op, String key, long position) throws IOException {
+        mJournal.writeByte(op);
+        mJournal.writeUTF(key);
+        if (op == OP_PUT) mJournal.writeLong(position);
+    }
+
+    private void onRecordsAppended(int count) {
+        mJournalRecords += count;
+        if (mJournalRecords > MIN_COMPACT_RECORDS && mJournalRecords > size() * 2) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * 在写入线程把当前内容写为快照，先写临时文件再替换。按最久未使用到最近使用的顺序写入，重放后顺序不变
+     */
+    private void rewriteJournal() {
+        if (mJournalFile == null) return;
+        closeQuietly(mJournal);
+        mJournal = null;
+        File directory = mJournalFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            L.e("Unable to create directory " + directory);
+            return;
+        }
+        File tmp = new File(mJournalFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(JOURNAL_MAGIC);
+            int records = 0;
+            synchronized (this) {
+                for (int i = mLruHead; i != NONE; i = mLruNext[i]) {
+                    out.writeByte(OP_PUT);
+                    out.writeUTF(mKeys[i]);
+                    out.writeLong(mPositions[i]);
+                    records++;
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mJournalFile)) throw new IOException("Unable to rename " + tmp);
+            mJournalRecords = records;
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+        } catch (IOException e) {
+            L.e("Error writing progress journal: " + e.getMessage());
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,38 +1,81 @@
 package com.dueeeke.videoplayer.util;
 
+import android.content.Context;
 import android.text.TextUtils;
 
-import java.util.LinkedHashMap;
+import java.io.File;
 
 /**
  * Created by xinyu on 2018/4/18.
+ * 播放进度保存在{@link ProgressStore}中，调用{@link #init(Context)}后持久化，否则只保存在内存中
  */
 
 public class ProgressUtil {
 
-    private static LinkedHashMap<Integer, Long> progressMap = new LinkedHashMap<>();
+    private static final String PROGRESS_FILE = "dkplayer/progress.journal";
+    private static ProgressStore sProgressStore;
+
+    /**
+     * 使用持久化的进度存储，重启应用后可以继续播放。
+     * 之前已经保存在内存中的进度会合并到持久化存储中，重复调用无效
+     */
+    public static synchronized void init(Context context) {
+        if (sProgressStore != null && sProgressStore.isPersistent()) return;
+        File file = new File(context.getApplicationContext().getFilesDir(), PROGRESS_FILE);
+        sProgressStore = new ProgressStore(file, ProgressStore.DEFAULT_MAX_ENTRIES, sProgressStore);
+    }
+
+    private static synchronized ProgressStore getProgressStore() {
+        if (sProgressStore == null) {
+            sProgressStore = new ProgressStore(null, ProgressStore.DEFAULT_MAX_ENTRIES);
+        }
+        return sProgressStore;
+    }
 
     public static void saveProgress(String url, long progress) {
         if (TextUtils.isEmpty(url)) return;
-        progressMap.put(url.hashCode(), progress);
+        getProgressStore().put(url, progress);
+    }
+
+    /**
+     * 播放中定时保存进度，只更新内存，由{@link ProgressStore}合并后批量写入
+     */
+    public static void checkpointProgress(String url, long progress) {
+        if (TextUtils.isEmpty(url)) return;
+        getProgressStore().checkpoint(url, progress);
+    }
+
+    /**
+     * 立即在后台写入定时保存的进度，还没有保存过进度时不做任何事
+     */
+    public static synchronized void flushSavedProgress() {
+        if (sProgressStore != null) sProgressStore.flush();
+    }
+
+    /**
+     * 在Application的onTrimMemory中调用。退到后台或内存不足时进程随时可能被杀死，任何级别都立即写入定时保存的进度
+     */
+    public static void onTrimMemory(int level) {
+        flushSavedProgress();
     }
 
     public static long getSavedProgress(String url) {
-        return TextUtils.isEmpty(url) ? 0 : progressMap.containsKey(url.hashCode()) ? progressMap.get(url.hashCode()) : 0;
+        return TextUtils.isEmpty(url) ? 0 : getProgressStore().get(url);
     }
 
     /**
      * clear all progress
      */
     public static void clearAllSavedProgress() {
-        progressMap.clear();
+        getProgressStore().clear();
     }
 
     /**
      * remove progress by url
      */
     public static void clearSavedProgressByUrl(String url) {
-        progressMap.remove(url.hashCode());
+        if (TextUtils.isEmpty(url)) return;
+        getProgressStore().remove(url);
     }
 
 }
@@ -0,0 +1,11 @@
+package android.text;
+
+/**
+ * JVM单元测试中代替android.jar中的空实现，缓存代码只用到isEmpty
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
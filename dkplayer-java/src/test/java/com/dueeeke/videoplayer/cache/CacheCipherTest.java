@@ -0,0 +1,188 @@
+package com.dueeeke.videoplayer.cache;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓存加密的正确性和吞吐量。吞吐量只打印结果，不作为断言，用于对比加密前后的读写耗时
+ */
+public class CacheCipherTest {
+
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RANDOM_READ_SIZE = 16 * 1024;
+    private static final int RANDOM_READS = 4000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        CacheFile.setCipher(null);
+    }
+
+    /**
+     * 任意位置、任意长度、连续或跳变的处理结果都和从头开始的AES-CTR一致
+     */
+    @Test
+    public void keyStreamMatchesCtrFromStart() throws Exception {
+        byte[] key = newKey(1);
+        byte[] data = newData(1024 * 1024, 2);
+        byte[] expected = ctrFromStart(key, data);
+
+        CacheCipher.KeyStream keyStream = new CacheCipher.KeyStream(key);
+        byte[] actual = new byte[data.length];
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            int position = random.nextInt(data.length);
+            int length = Math.min(random.nextInt(40000), data.length - position);
+            keyStream.crypt(position, data, position, length, actual, position);
+            //接着上一次的位置继续处理，不重新定位
+            int next = position + length;
+            int more = Math.min(random.nextInt(100), data.length - next);
+            keyStream.crypt(next, data, next, more, actual, next);
+            assertArrayEquals(Arrays.copyOfRange(expected, position, next + more),
+                    Arrays.copyOfRange(actual, position, next + more));
+        }
+    }
+
+    @Test
+    public void directBufferMatchesArray() throws Exception {
+        byte[] key = newKey(4);
+        byte[] data = newData(100000, 5);
+        byte[] expected = ctrFromStart(key, data);
+
+        CacheCipher.KeyStream keyStream = new CacheCipher.KeyStream(key);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length - 1001);
+        buffer.put(data, 1001, buffer.capacity());
+        buffer.flip();
+        keyStream.crypt(1001, buffer);
+        assertEquals(0, buffer.position());
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(Arrays.copyOfRange(expected, 1001, data.length), actual);
+    }
+
+    @Test
+    public void headerRequiresSameMasterKey() throws Exception {
+        File file = mFolder.newFile("header");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        try {
+            assertFalse(CacheCipher.hasHeader(channel));
+            CacheCipher.KeyStream written = new CacheCipher(newKey(6)).writeHeader(channel);
+            assertTrue(CacheCipher.hasHeader(channel));
+            assertNull(new CacheCipher(newKey(7)).readHeader(channel));
+            CacheCipher.KeyStream read = new CacheCipher(newKey(6)).readHeader(channel);
+            assertNotNull(read);
+
+            byte[] data = newData(5000, 8);
+            byte[] encrypted = new byte[data.length];
+            written.crypt(123, data, 0, data.length, encrypted, 0);
+            byte[] decrypted = new byte[data.length];
+            read.crypt(123, encrypted, 0, encrypted.length, decrypted, 0);
+            assertArrayEquals(data, decrypted);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 通过缓存文件乱序写入、顺序读取和随机读取，对比加密和不加密的耗时
+     */
+    @Test
+    public void throughput() throws Exception {
+        byte[] data = newData(FILE_SIZE, 9);
+        long[] plain = measure(data, null);
+        long[] encrypted = measure(data, new CacheCipher(newKey(10)));
+        System.out.println(String.format("CacheCipher throughput (%dMB, %d random reads of %dK)",
+                FILE_SIZE >> 20, RANDOM_READS, RANDOM_READ_SIZE >> 10));
+        System.out.println(String.format("  plain:     write %dMB/s, read %dMB/s, random %dms",
+                megabytesPerSecond(plain[0]), megabytesPerSecond(plain[1]), plain[2] / 1000000));
+        System.out.println(String.format("  encrypted: write %dMB/s, read %dMB/s, random %dms",
+                megabytesPerSecond(encrypted[0]), megabytesPerSecond(encrypted[1]), encrypted[2] / 1000000));
+    }
+
+    /**
+     * @return 写入、顺序读取和随机读取的耗时，单位纳秒
+     */
+    private long[] measure(byte[] data, CacheCipher cipher) throws Exception {
+        CacheFile.setCipher(cipher);
+        File file = new File(mFolder.newFolder(), "video");
+        CacheFile cacheFile = CacheFile.acquire(file);
+        try {
+            long start = System.nanoTime();
+            int half = data.length / 2;
+            for (int position = half; position < data.length; position += CHUNK_SIZE) {
+                cacheFile.write(position, data, position, Math.min(CHUNK_SIZE, data.length - position));
+            }
+            for (int position = 0; position < half; position += CHUNK_SIZE) {
+                cacheFile.write(position, data, position, Math.min(CHUNK_SIZE, half - position));
+            }
+            cacheFile.setLength(data.length);
+            long written = System.nanoTime();
+
+            byte[] read = new byte[data.length];
+            int position = 0;
+            while (position < data.length) {
+                position += cacheFile.read(read, position, position, Math.min(CHUNK_SIZE, data.length - position));
+            }
+            long sequential = System.nanoTime();
+            assertArrayEquals(data, read);
+
+            Random random = new Random(11);
+            byte[] buffer = new byte[RANDOM_READ_SIZE];
+            for (int i = 0; i < RANDOM_READS; i++) {
+                int offset = random.nextInt(data.length - buffer.length);
+                assertEquals(buffer.length, cacheFile.read(buffer, offset, 0, buffer.length));
+                if (i % 100 == 0) {
+                    assertArrayEquals(Arrays.copyOfRange(data, offset, offset + buffer.length), buffer);
+                }
+            }
+            long randomEnd = System.nanoTime();
+            return new long[]{written - start, sequential - written, randomEnd - sequential};
+        } finally {
+            cacheFile.release();
+        }
+    }
+
+    private static long megabytesPerSecond(long nanos) {
+        return (long) (FILE_SIZE / 1048576.0 / (nanos / 1e9));
+    }
+
+    private static byte[] ctrFromStart(byte[] key, byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        return cipher.doFinal(data);
+    }
+
+    private static byte[] newKey(long seed) {
+        return newData(16, seed);
+    }
+
+    private static byte[] newData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,212 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.cache.evictor.LfuEvictionPolicy;
+import com.dueeeke.videoplayer.cache.evictor.LruEvictionPolicy;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓存索引的日志格式：重新加载、压缩、旧版本和不完整的日志
+ */
+public class CacheIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mFolder.newFolder("cache");
+    }
+
+    @Test
+    public void reloadRestoresEntries() throws Exception {
+        CacheIndex index = newIndex();
+        index.update("a", 100, true);
+        index.update("b", 200, false);
+        index.touch("b");
+        index.setPinned("b", true);
+        index.setTtl("a", 5000);
+        index.setValidators("a", "\"v1\"", "Mon, 01 Jan 2018 00:00:00 GMT");
+        index.update("c", 300, true);
+        index.remove("c");
+        index.awaitJournal();
+
+        CacheIndex reloaded = newIndex();
+        assertEquals(2, reloaded.getCount());
+        assertEquals(300, reloaded.getTotalSize());
+        assertEquals(200, reloaded.getPinnedSize());
+        CacheEntry a = reloaded.get("a");
+        assertTrue(a.completed);
+        assertEquals(5000, a.ttl);
+        assertEquals("\"v1\"", a.eTag);
+        assertEquals("Mon, 01 Jan 2018 00:00:00 GMT", a.lastModified);
+        CacheEntry b = reloaded.get("b");
+        assertFalse(b.completed);
+        assertTrue(b.pinned);
+        assertEquals(2, b.accessCount);
+        assertNull(reloaded.get("c"));
+    }
+
+    /**
+     * 只访问或准入、没有缓存数据的key不产生条目
+     */
+    @Test
+    public void touchAndTtlDoNotCreateEntries() throws Exception {
+        CacheIndex index = newIndex();
+        index.touch("locked");
+        index.setTtl("ad", 1000);
+        index.setCacheLimit("head", 1024);
+        assertEquals(0, index.getCount());
+        assertEquals(1024, index.getCacheLimit("head"));
+
+        index.update("ad", 10, false);
+        assertEquals(1000, index.get("ad").ttl);
+        assertEquals(1, index.get("ad").accessCount);
+        index.remove("head");
+        assertEquals(0, index.getCacheLimit("head"));
+    }
+
+    /**
+     * 加载完成前的修改不等待，加载完成后按顺序生效
+     */
+    @Test
+    public void changesBeforeLoadAreReplayed() throws Exception {
+        CacheIndex index = newIndex();
+        index.update("a", 100, true);
+        index.update("b", 100, true);
+        index.awaitJournal();
+
+        CacheIndex reloaded = new CacheIndex(mDirectory);
+        reloaded.touch("a");
+        reloaded.remove("b");
+        reloaded.update("c", 50, false);
+        reloaded.awaitLoaded();
+        assertEquals(2, reloaded.getCount());
+        assertEquals(2, reloaded.get("a").accessCount);
+        assertNull(reloaded.get("b"));
+        assertEquals(150, reloaded.getTotalSize());
+    }
+
+    @Test
+    public void evictionOrderFollowsPolicy() throws Exception {
+        CacheIndex index = new CacheIndex(mDirectory, new LfuEvictionPolicy(), 0);
+        index.awaitLoaded();
+        for (int i = 0; i < 4; i++) {
+            index.update("k" + i, 10, true);
+            for (int j = 0; j < 4 - i; j++) index.touch("k" + i);
+        }
+        index.setPinned("k3", true);
+        Set<String> skipped = new HashSet<>();
+        assertEquals("k2", index.peekEviction(skipped).key);
+        skipped.add("k2");
+        assertEquals("k1", index.peekEviction(skipped).key);
+
+        index.setTtl("k0", 1);
+        Thread.sleep(5);
+        assertEquals("k0", index.peekExpired(System.currentTimeMillis(), Collections.<String>emptySet()).key);
+        assertNull(index.peekExpired(System.currentTimeMillis(), Collections.singleton("k0")));
+    }
+
+    /**
+     * 无效记录过多时重写为快照，日志大小和条目数相关，而不是和修改次数相关
+     */
+    @Test
+    public void journalIsCompacted() throws Exception {
+        CacheIndex index = newIndex();
+        index.update("a", 100, true);
+        for (int i = 0; i < 20000; i++) index.touch("a");
+        index.awaitJournal();
+        File journal = new File(mDirectory, CacheIndex.JOURNAL_FILE);
+        assertTrue("journal size " + journal.length(), journal.length() < 200 * 1024);
+
+        CacheIndex reloaded = newIndex();
+        assertEquals(20001, reloaded.get("a").accessCount);
+    }
+
+    /**
+     * 进程被杀时最后一条记录可能不完整，之前的记录仍然有效，重写后可以继续追加
+     */
+    @Test
+    public void truncatedJournalKeepsCompleteRecords() throws Exception {
+        CacheIndex index = newIndex();
+        index.update("a", 100, true);
+        index.update("b", 200, true);
+        index.awaitJournal();
+        File journal = new File(mDirectory, CacheIndex.JOURNAL_FILE);
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write(new byte[]{1, 0, 5, 'c'});
+        out.close();
+
+        CacheIndex reloaded = newIndex();
+        assertEquals(2, reloaded.getCount());
+        reloaded.update("d", 10, true);
+        reloaded.awaitJournal();
+        assertEquals(3, newIndex().getCount());
+    }
+
+    /**
+     * 第一版日志没有有效期、固定标记和校验信息
+     */
+    @Test
+    public void readsVersion1Journal() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(mDirectory, CacheIndex.JOURNAL_FILE)));
+        out.writeInt(0x444b4a31);
+        out.writeByte(1);
+        out.writeUTF("old");
+        out.writeLong(100);
+        out.writeLong(2000);
+        out.writeLong(1000);
+        out.writeInt(3);
+        out.writeBoolean(true);
+        out.close();
+
+        CacheIndex index = newIndex();
+        CacheEntry entry = index.get("old");
+        assertNotNull(entry);
+        assertEquals(100, entry.size);
+        assertEquals(3, entry.accessCount);
+        assertEquals(0, entry.ttl);
+        assertFalse(entry.pinned);
+        index.touch("old");
+        index.awaitJournal();
+        assertEquals(4, newIndex().get("old").accessCount);
+    }
+
+    @Test
+    public void missingJournalIsRebuiltFromFiles() throws Exception {
+        new FileOutputStream(new File(mDirectory, "done")).close();
+        FileOutputStream partial = new FileOutputStream(new File(mDirectory, "partial" + CacheFile.TEMP_POSTFIX));
+        partial.write(new byte[10]);
+        partial.close();
+
+        CacheIndex index = newIndex();
+        assertEquals(2, index.getCount());
+        assertTrue(index.isCompleted("done"));
+        assertFalse(index.isCompleted("partial"));
+        assertEquals(10, index.get("partial").size);
+    }
+
+    private CacheIndex newIndex() {
+        CacheIndex index = new CacheIndex(mDirectory, new LruEvictionPolicy(), 0);
+        index.awaitLoaded();
+        return index;
+    }
+}
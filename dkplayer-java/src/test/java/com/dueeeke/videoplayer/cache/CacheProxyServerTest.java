@@ -0,0 +1,193 @@
+package com.dueeeke.videoplayer.cache;
+
+import com.dueeeke.videoplayer.cache.evictor.CacheEvictor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 本地代理的Range处理和并发负载
+ */
+public class CacheProxyServerTest {
+
+    private static final int DATA_SIZE = 4 * 1024 * 1024 + 123;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mData;
+    private TestOrigin mOrigin;
+    private OriginFetcher mFetcher;
+    private CacheProxyServer mProxy;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = new byte[DATA_SIZE];
+        new Random(1).nextBytes(mData);
+        mOrigin = new TestOrigin(mData);
+        CacheConfig config = new CacheConfig.Builder().build();
+        File cacheDirectory = mFolder.newFolder("cache");
+        CacheEvictor evictor = new CacheEvictor(cacheDirectory, config, new CacheIndex(cacheDirectory));
+        CacheFile.setOnCacheChangedListener(evictor);
+        mFetcher = new OriginFetcher();
+        mProxy = new CacheProxyServer(cacheDirectory, config.mKeyGenerator, evictor, mFetcher);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProxy.shutdown();
+        mFetcher.shutdown();
+        mOrigin.shutdown();
+        CacheFile.setOnCacheChangedListener(null);
+    }
+
+    @Test
+    public void servesFullAndPartialRequests() throws Exception {
+        String url = mProxy.getProxyUrl(mOrigin.getUrl("full.mp4"));
+        Response full = get(url, null);
+        assertEquals(200, full.code);
+        assertArrayEquals(mData, full.body);
+
+        Response open = get(url, "bytes=1000-");
+        assertEquals(206, open.code);
+        assertEquals("bytes 1000-" + (DATA_SIZE - 1) + "/" + DATA_SIZE, open.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(mData, 1000, DATA_SIZE), open.body);
+
+        Response closed = get(url, "bytes=10-19");
+        assertEquals(206, closed.code);
+        assertEquals("bytes 10-19/" + DATA_SIZE, closed.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(mData, 10, 20), closed.body);
+
+        //结束位置超出长度时截断
+        Response beyond = get(url, "bytes=" + (DATA_SIZE - 5) + "-" + (DATA_SIZE + 100));
+        assertEquals(206, beyond.code);
+        assertArrayEquals(Arrays.copyOfRange(mData, DATA_SIZE - 5, DATA_SIZE), beyond.body);
+    }
+
+    /**
+     * bytes=-N 请求最后N个字节，N超过长度时返回全部
+     */
+    @Test
+    public void servesSuffixRanges() throws Exception {
+        String url = mProxy.getProxyUrl(mOrigin.getUrl("suffix.mp4"));
+        Response tail = get(url, "bytes=-500");
+        assertEquals(206, tail.code);
+        assertEquals("bytes " + (DATA_SIZE - 500) + "-" + (DATA_SIZE - 1) + "/" + DATA_SIZE, tail.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(mData, DATA_SIZE - 500, DATA_SIZE), tail.body);
+
+        Response all = get(url, "bytes=-" + (DATA_SIZE * 2));
+        assertEquals(206, all.code);
+        assertArrayEquals(mData, all.body);
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() throws Exception {
+        String url = mProxy.getProxyUrl(mOrigin.getUrl("unsatisfiable.mp4"));
+        //先缓存开头，总长度已知
+        assertEquals(206, get(url, "bytes=0-99").code);
+
+        Response beyond = get(url, "bytes=" + DATA_SIZE + "-");
+        assertEquals(416, beyond.code);
+        assertEquals("bytes */" + DATA_SIZE, beyond.contentRange);
+
+        Response emptySuffix = get(url, "bytes=-0");
+        assertEquals(416, emptySuffix.code);
+        assertEquals("bytes */" + DATA_SIZE, emptySuffix.contentRange);
+    }
+
+    /**
+     * 格式错误或多个区间的Range忽略，返回完整内容
+     */
+    @Test
+    public void ignoresInvalidRanges() throws Exception {
+        String url = mProxy.getProxyUrl(mOrigin.getUrl("invalid.mp4"));
+        for (String range : new String[]{"bytes=20-10", "bytes=abc-", "bytes=0-1,5-6", "items=0-10"}) {
+            Response response = get(url, range);
+            assertEquals(range, 200, response.code);
+            assertEquals(range, DATA_SIZE, response.body.length);
+        }
+    }
+
+    /**
+     * 多个播放器同时从不同位置读取同一个视频，数据都正确
+     */
+    @Test
+    public void concurrentReaders() throws Exception {
+        final String url = mProxy.getProxyUrl(mOrigin.getUrl("load.mp4"));
+        int clients = 48;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int offset = (i % 8) * (DATA_SIZE / 8);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    Response response = get(url, offset > 0 ? "bytes=" + offset + "-" : null);
+                    return Arrays.equals(Arrays.copyOfRange(mData, offset, DATA_SIZE), response.body);
+                }
+            }));
+        }
+        int ok = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get(60, TimeUnit.SECONDS)) ok++;
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        executor.shutdown();
+        System.out.println(String.format("CacheProxyServer load: %d clients, %d ok in %dms, %d origin requests",
+                clients, ok, elapsed, mOrigin.getRequestCount()));
+        assertEquals(clients, ok);
+    }
+
+    private static Response get(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (range != null) connection.setRequestProperty("Range", range);
+            Response response = new Response();
+            response.code = connection.getResponseCode();
+            response.contentRange = connection.getHeaderField("Content-Range");
+            InputStream in = response.code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                in.close();
+            }
+            response.body = body.toByteArray();
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static class Response {
+        int code;
+        String contentRange;
+        byte[] body;
+    }
+}
@@ -0,0 +1,83 @@
+package com.dueeeke.videoplayer.cache;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓存写入的吞吐量。按下载时的块大小写入，对比不缓冲、写缓冲和关闭fsync的耗时，只打印结果，
+ * 断言只检查写入的数据完整
+ */
+public class CacheWriteThroughputTest {
+
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int DOWNLOAD_CHUNK_SIZE = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        CacheConfig config = new CacheConfig.Builder().build();
+        CacheFile.setWriteOptions(config.writeBufferSize, config.syncBytes, config.fsync);
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        CacheConfig config = new CacheConfig.Builder().build();
+        long unbuffered = measure(data, 0, config.syncBytes, true);
+        long buffered = measure(data, config.writeBufferSize, config.syncBytes, true);
+        long noSync = measure(data, config.writeBufferSize, config.syncBytes, false);
+        System.out.println(String.format("CacheFile write throughput (%dMB in %dK chunks)",
+                FILE_SIZE >> 20, DOWNLOAD_CHUNK_SIZE >> 10));
+        System.out.println(String.format("  unbuffered:         %dMB/s", megabytesPerSecond(unbuffered)));
+        System.out.println(String.format("  %dK write buffer:  %dMB/s", config.writeBufferSize >> 10, megabytesPerSecond(buffered)));
+        System.out.println(String.format("  buffer, no fsync:   %dMB/s", megabytesPerSecond(noSync)));
+    }
+
+    /**
+     * @return 写入并完成缓存的耗时，单位纳秒
+     */
+    private long measure(byte[] data, int writeBufferSize, long syncBytes, boolean fsync) throws Exception {
+        CacheFile.setWriteOptions(writeBufferSize, syncBytes, fsync);
+        File file = new File(mFolder.newFolder(), "video");
+        CacheFile cacheFile = CacheFile.acquire(file);
+        long elapsed;
+        try {
+            long start = System.nanoTime();
+            for (int position = 0; position < data.length; position += DOWNLOAD_CHUNK_SIZE) {
+                cacheFile.write(position, data, position, Math.min(DOWNLOAD_CHUNK_SIZE, data.length - position));
+            }
+            cacheFile.setLength(data.length);
+            elapsed = System.nanoTime() - start;
+            assertTrue(cacheFile.isCompleted());
+        } finally {
+            cacheFile.release();
+        }
+        CacheFile reopened = CacheFile.acquire(file);
+        try {
+            byte[] read = new byte[data.length];
+            int position = 0;
+            while (position < data.length) {
+                position += reopened.read(read, position, position, data.length - position);
+            }
+            assertArrayEquals(data, read);
+        } finally {
+            reopened.release();
+        }
+        return elapsed;
+    }
+
+    private static long megabytesPerSecond(long nanos) {
+        return (long) (FILE_SIZE / 1048576.0 / (nanos / 1e9));
+    }
+}
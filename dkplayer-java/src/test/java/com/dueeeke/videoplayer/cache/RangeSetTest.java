@@ -0,0 +1,123 @@
+package com.dueeeke.videoplayer.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangeSetTest {
+
+    @Test
+    public void mergesAdjacentAndOverlappingRanges() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 10);
+        ranges.add(20, 30);
+        ranges.add(10, 15);
+        ranges.add(25, 40);
+        assertRanges(ranges, new long[]{0, 15}, new long[]{20, 40});
+        assertEquals(35, ranges.getBytes());
+
+        //覆盖多个区间
+        ranges.add(5, 50);
+        assertRanges(ranges, new long[]{0, 50});
+        assertEquals(50, ranges.getBytes());
+
+        //已包含的区间和空区间不改变结果
+        ranges.add(3, 7);
+        ranges.add(60, 60);
+        assertRanges(ranges, new long[]{0, 50});
+        assertEquals(50, ranges.getBytes());
+    }
+
+    @Test
+    public void queriesArePositionBased() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        assertFalse(ranges.contains(9));
+        assertTrue(ranges.contains(10));
+        assertFalse(ranges.contains(20));
+        assertEquals(20, ranges.getContiguousEnd(15));
+        assertEquals(25, ranges.getContiguousEnd(25));
+        assertEquals(30, ranges.getNextStart(20));
+        assertEquals(-1, ranges.getNextStart(30));
+    }
+
+    @Test
+    public void gapsCoverUncachedParts() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        List<long[]> gaps = ranges.getGaps(0, 50);
+        assertEquals(3, gaps.size());
+        assertArrayEquals(new long[]{0, 10}, gaps.get(0));
+        assertArrayEquals(new long[]{20, 30}, gaps.get(1));
+        assertArrayEquals(new long[]{40, 50}, gaps.get(2));
+        assertTrue(ranges.getGaps(12, 18).isEmpty());
+        assertEquals(1, ranges.getGaps(15, 35).size());
+        assertArrayEquals(new long[]{20, 30}, ranges.getGaps(15, 35).get(0));
+    }
+
+    /**
+     * 随机添加后和逐字节标记的结果一致
+     */
+    @Test
+    public void matchesBitmap() {
+        Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            RangeSet ranges = new RangeSet();
+            boolean[] cached = new boolean[1000];
+            for (int i = 0; i < 30; i++) {
+                int start = random.nextInt(cached.length);
+                int end = Math.min(cached.length, start + random.nextInt(80));
+                ranges.add(start, end);
+                for (int j = start; j < end; j++) cached[j] = true;
+            }
+            long bytes = 0;
+            for (int position = 0; position < cached.length; position++) {
+                assertEquals("position " + position, cached[position], ranges.contains(position));
+                if (cached[position]) bytes++;
+            }
+            assertEquals(bytes, ranges.getBytes());
+            long gapBytes = 0;
+            for (long[] gap : ranges.getGaps(0, cached.length)) {
+                for (long position = gap[0]; position < gap[1]; position++) assertFalse(cached[(int) position]);
+                gapBytes += gap[1] - gap[0];
+            }
+            assertEquals(cached.length - bytes, gapBytes);
+        }
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws Exception {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 100);
+        ranges.add(4096, 8192);
+        ranges.add(1L << 33, (1L << 33) + 5);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ranges.write(new DataOutputStream(bytes));
+
+        RangeSet read = new RangeSet();
+        read.add(1, 2);
+        read.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertRanges(read, new long[]{0, 100}, new long[]{4096, 8192}, new long[]{1L << 33, (1L << 33) + 5});
+        assertEquals(ranges.getBytes(), read.getBytes());
+    }
+
+    private static void assertRanges(RangeSet ranges, long[]... expected) {
+        List<long[]> actual = ranges.getRanges();
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual.get(i));
+        }
+    }
+}
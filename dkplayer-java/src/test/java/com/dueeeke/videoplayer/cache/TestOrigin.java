@@ -0,0 +1,105 @@
+package com.dueeeke.videoplayer.cache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的源站，返回固定的数据，支持 bytes=start- 和 bytes=start-end 的Range请求
+ */
+class TestOrigin {
+
+    private final byte[] mData;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    TestOrigin(byte[] data) throws IOException {
+        this.mData = data;
+        this.mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + path;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) return;
+            mRequestCount.incrementAndGet();
+            long start = 0;
+            long end = mData.length;
+            boolean partial = false;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                String lower = line.toLowerCase(Locale.US);
+                if (lower.startsWith("range: bytes=")) {
+                    String[] range = line.substring("range: bytes=".length()).split("-", -1);
+                    start = Long.parseLong(range[0].trim());
+                    if (!range[1].trim().isEmpty()) end = Math.min(end, Long.parseLong(range[1].trim()) + 1);
+                    partial = true;
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            StringBuilder headers = new StringBuilder();
+            headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Length: ").append(end - start).append("\r\n");
+            if (partial) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+                        .append('/').append(mData.length).append("\r\n");
+            }
+            headers.append("Accept-Ranges: bytes\r\nETag: \"v1\"\r\nContent-Type: video/mp4\r\nConnection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("ISO-8859-1"));
+            if (!requestLine.startsWith("HEAD")) {
+                for (long position = start; position < end; position += 8192) {
+                    out.write(mData, (int) position, (int) Math.min(8192, end - position));
+                }
+            }
+            out.flush();
+        } catch (IOException ignored) {
+            //客户端提前断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}